@@ -0,0 +1,363 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.SnapshotTaskExecutor.RunningTasks;
+import com.nimblestorage.npm.agent.resource.data.AdminStatus;
+import com.nimblestorage.npm.agent.resource.data.PreparedSnapshotInfo;
+import com.nimblestorage.npm.agent.resource.data.RunningTaskInfo;
+import com.nimblestorage.npm.agent.resource.data.RuntimeSettings;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+
+/**
+ * Lets operators inspect and tune the running agent: prepared HANA snapshots, executor
+ * occupancy and stuck tasks, force-closing a stale HANA snapshot, promoting the pre-generated
+ * server certificate, and changing the task concurrency, the wait bounds and log levels
+ * without a restart.
+ *
+ * Requests are authenticated against HANA like snapshot task requests, and only the HANA
+ * users listed in admin_users are allowed. Without admin_users the resource is disabled.
+ */
+@Path("/rest/v1/admin")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class AdminResourceImpl {
+    private static final Logger logger = Logger.getLogger(AdminResourceImpl.class);
+    private static final String ROOT_LOGGER = "root";
+    private static final Pattern BACKUP_ID_PATTERN = Pattern.compile("\\d+");
+    // Log levels changed through this resource, logger name -> level
+    private static final ConcurrentMap<String, String> changedLogLevels = Maps.newConcurrentMap();
+
+    private HanaConnection sapConnection = HanaConnections.newConnection();
+
+    @Context
+    HttpServletRequest request;
+
+    /**
+     * Returns the runtime state of the agent.
+     *
+     * @return Response - JAX-RS Response object with the AdminStatus
+     */
+    @GET
+    public Response getAdminStatus() {
+        logger.info("getAdminStatus - STARTING");
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        sapConnection.disconnect();
+
+        String target = sapConnection.getTarget();
+        SnapshotTaskExecutor executor = SnapshotTaskExecutor.getInstance();
+        SnapshotLedger ledger = SnapshotLedger.forTarget(target);
+        HanaSampler sampler = HanaSampler.forTarget(target);
+
+        List<PreparedSnapshotInfo> preparedSnapshots = Lists.newArrayList();
+        for (PreparedSnapshot prepared : ledger.getOpen()) {
+            preparedSnapshots.add(toInfo(prepared));
+        }
+        List<RunningTaskInfo> runningTasks = Lists.newArrayList();
+        for (RunningTasks running : executor.getRunningTasks()) {
+            runningTasks.add(toInfo(running, false));
+        }
+
+        AdminStatus status = new AdminStatus()
+                .withTarget(target)
+                .withCircuitState(CircuitBreaker.forTarget(target).getState().name())
+                .withPreparedSnapshots(preparedSnapshots)
+                .withRunningTasks(runningTasks)
+                .withTrackedTasks(SnapshotTaskResourceImpl.getTaskCount())
+                .withPipelineQueueLength(SnapshotPipeline.forTarget(target, executor).getQueueLength())
+                .withMaxConcurrentTasks(executor.getMaxConcurrentTasks())
+                .withActiveThreads(executor.getActiveCount())
+                .withPoolSize(executor.getPoolSize())
+                .withLargestPoolSize(executor.getLargestPoolSize())
+                .withQueuedTasks(executor.getQueueSize())
+                .withCompletedTasks(executor.getCompletedTaskCount())
+                .withPrepares(ledger.getPrepares())
+                .withCloses(ledger.getCloses())
+                .withFailedCloses(ledger.getFailedCloses())
+                .withRejectedCloses(ledger.getRejectedCloses())
+                .withWaitSecs(sampler.getRecommendedWaitSecs())
+                .withTimeoutSecs(sampler.getRecommendedTimeoutSecs());
+        return Response.ok(status).build();
+    }
+
+    /**
+     * Returns the stacks of the threads working on snapshot tasks.
+     *
+     * @param minRunningSecs - only threads working on their tasks for at least this many seconds, all if not specified
+     * @return Response - JAX-RS Response object with a RunningTaskInfo per thread, longest running first
+     */
+    @Path("threads")
+    @GET
+    public Response getThreadDumps(@QueryParam("minRunningSecs") Integer minRunningSecs) {
+        logger.info("getThreadDumps - STARTING: minRunningSecs = " + minRunningSecs);
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        sapConnection.disconnect();
+
+        List<RunningTaskInfo> dumps = Lists.newArrayList();
+        for (RunningTasks running : SnapshotTaskExecutor.getInstance().getRunningTasks()) {
+            RunningTaskInfo info = toInfo(running, true);
+            if (minRunningSecs == null || info.getRunningSecs() >= minRunningSecs) {
+                dumps.add(info);
+            }
+        }
+        return Response.ok(dumps).build();
+    }
+
+    /**
+     * Closes a prepared HANA snapshot as failed, e.g. one whose post-snapshot task never
+     * arrived and that blocks the queued pre-snapshot tasks. The tasks of its storage
+     * snapshots are removed. A backup id the agent does not know, e.g. one prepared before
+     * the agent restarted, is closed in HANA directly.
+     *
+     * @param backupId - HANA backup id of the prepared snapshot
+     * @return Response - JAX-RS Response object indicating if the snapshot was closed: 409 if it is
+     *         being closed or was closed by someone else, 500 with the HANA error if the close failed
+     */
+    @Path("prepared-snapshots/{backupId}/close")
+    @POST
+    public Response closePreparedSnapshot(@PathParam("backupId") String backupId) {
+        logger.info("closePreparedSnapshot - STARTING: backupId = " + backupId);
+        if (backupId == null || !BACKUP_ID_PATTERN.matcher(backupId).matches()) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            PreparedSnapshot prepared = null;
+            for (PreparedSnapshot open : SnapshotLedger.forTarget(sapConnection.getTarget()).getOpen()) {
+                if (backupId.equals(open.getBackupId())) {
+                    prepared = open;
+                }
+            }
+            if (prepared != null) {
+                if (!SnapshotTaskResourceImpl.expirePreparedSnapshot(sapConnection, prepared)) {
+                    // Lost the race against a post-snapshot task or the expiry of the snapshot
+                    return Response.status(Status.CONFLICT).entity("SAP HANA backup " + backupId + " is " + prepared.getState()).build();
+                }
+                logger.warn("closePreparedSnapshot - closed: backupId = " + backupId + ", snapName = " + prepared.getLabel());
+                return Response.ok(toInfo(prepared)).build();
+            }
+            sapConnection.sapPostSnapshot(false, backupId, null);
+            logger.warn("closePreparedSnapshot - closed unknown backupId = " + backupId);
+            // A queued pre-snapshot task waiting for this snapshot can start right away
+            SnapshotPipeline.forTarget(sapConnection.getTarget(), SnapshotTaskExecutor.getInstance()).closed(backupId);
+            return Response.ok().build();
+        } catch (SQLException e) {
+            logger.error("closePreparedSnapshot - failure: backupId = " + backupId, e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Failed to close SAP HANA backup " + backupId + ": " + e.getMessage()).build();
+        } finally {
+            sapConnection.disconnect();
+        }
+    }
+
+    /**
+     * Replaces the server certificate with the one generated ahead of time. New connections
+     * use it right away, so the arrays have to accept the new certificate first.
+     *
+     * @return Response - JAX-RS Response object indicating if the certificate was replaced
+     */
+    @Path("certificate/rotate")
+    @POST
+    public Response rotateCertificate() {
+        logger.info("rotateCertificate - STARTING");
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        sapConnection.disconnect();
+        CertificateManager certificateManager = CertificateManager.getInstance();
+        if (certificateManager == null) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity("The server certificate is not managed by this agent").build();
+        }
+        try {
+            certificateManager.rotate();
+            logger.warn("rotateCertificate - rotated by " + RequestAuthenticator.getUsername(request));
+            return Response.ok().build();
+        } catch (Exception e) {
+            logger.error("rotateCertificate - failure", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Failed to rotate the server certificate: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Returns the settings that can be changed at runtime.
+     *
+     * @return Response - JAX-RS Response object with the RuntimeSettings
+     */
+    @Path("settings")
+    @GET
+    public Response getSettings() {
+        logger.info("getSettings - STARTING");
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        sapConnection.disconnect();
+        return Response.ok(currentSettings()).build();
+    }
+
+    /**
+     * Changes settings at runtime. Settings left null are not changed; all settings are
+     * validated before any is applied. Changes are lost when the agent restarts.
+     *
+     * @param settings - settings to change
+     * @return Response - JAX-RS Response object with the RuntimeSettings now in effect
+     */
+    @Path("settings")
+    @PUT
+    public Response updateSettings(RuntimeSettings settings) {
+        logger.info("updateSettings - STARTING");
+        Response denied = authorize();
+        if (denied != null) {
+            return denied;
+        }
+        sapConnection.disconnect();
+        // Logged only once authorized, the settings are input of the caller
+        logger.info("updateSettings - " + RequestAuthenticator.getUsername(request) + ": " + settings);
+        if (settings == null) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
+        HanaSampler sampler = HanaSampler.forTarget(sapConnection.getTarget());
+        int minWaitSecs = settings.getMinWaitSecs() != null ? settings.getMinWaitSecs() : sampler.getMinWaitSecs();
+        int maxWaitSecs = settings.getMaxWaitSecs() != null ? settings.getMaxWaitSecs() : sampler.getMaxWaitSecs();
+        if (minWaitSecs < 0 || maxWaitSecs < minWaitSecs) {
+            return Response.status(Status.BAD_REQUEST).entity(MessageFormat.format("Invalid wait bounds {0} - {1} seconds", minWaitSecs, maxWaitSecs)).build();
+        }
+        if (settings.getMaxConcurrentTasks() != null && settings.getMaxConcurrentTasks() < 1) {
+            return Response.status(Status.BAD_REQUEST).entity("maxConcurrentTasks must be at least 1").build();
+        }
+        Map<String, Level> levels = Maps.newLinkedHashMap();
+        if (settings.getLogLevels() != null) {
+            for (Map.Entry<String, String> entry : settings.getLogLevels().entrySet()) {
+                Level level = entry.getValue() == null ? null : Level.toLevel(entry.getValue(), null);
+                if (entry.getKey() == null || level == null) {
+                    return Response.status(Status.BAD_REQUEST).entity("Invalid log level " + entry.getValue() + " for " + entry.getKey()).build();
+                }
+                levels.put(entry.getKey(), level);
+            }
+        }
+
+        if (settings.getMaxConcurrentTasks() != null) {
+            SnapshotTaskExecutor.getInstance().setMaxConcurrentTasks(settings.getMaxConcurrentTasks());
+        }
+        if (settings.getMinWaitSecs() != null || settings.getMaxWaitSecs() != null) {
+            sampler.setWaitBounds(minWaitSecs, maxWaitSecs);
+        }
+        for (Map.Entry<String, Level> entry : levels.entrySet()) {
+            Logger target = ROOT_LOGGER.equals(entry.getKey()) ? Logger.getRootLogger() : Logger.getLogger(entry.getKey());
+            target.setLevel(entry.getValue());
+            changedLogLevels.put(entry.getKey(), entry.getValue().toString());
+            logger.warn("Log level of " + entry.getKey() + " set to " + entry.getValue());
+        }
+        return Response.ok(currentSettings()).build();
+    }
+
+    private RuntimeSettings currentSettings() {
+        HanaSampler sampler = HanaSampler.forTarget(sapConnection.getTarget());
+        Map<String, String> logLevels = Maps.newTreeMap();
+        logLevels.put(ROOT_LOGGER, String.valueOf(Logger.getRootLogger().getLevel()));
+        logLevels.putAll(changedLogLevels);
+        return new RuntimeSettings()
+                .withMaxConcurrentTasks(SnapshotTaskExecutor.getInstance().getMaxConcurrentTasks())
+                .withMinWaitSecs(sampler.getMinWaitSecs())
+                .withMaxWaitSecs(sampler.getMaxWaitSecs())
+                .withLogLevels(logLevels);
+    }
+
+    private static PreparedSnapshotInfo toInfo(PreparedSnapshot prepared) {
+        long nowSecs = AgentClock.get().currentTimeMillis() / 1000L;
+        return new PreparedSnapshotInfo()
+                .withBackupId(prepared.getBackupId())
+                .withSnapshotNames(Lists.newArrayList(prepared.getSnapshotNames()))
+                .withPreparedAt(TimeUnit.SECONDS.toMillis(prepared.getPreparedAtSecs()))
+                .withAgeSecs(nowSecs - prepared.getPreparedAtSecs())
+                .withState(prepared.getState().name());
+    }
+
+    private static RunningTaskInfo toInfo(RunningTasks running, boolean withStackTrace) {
+        List<String> taskIds = Lists.newArrayList();
+        List<String> snapshotNames = Lists.newArrayList();
+        for (SnapshotTask task : running.getTasks()) {
+            taskIds.add(task.getId());
+            snapshotNames.add(task.getSnapshotName());
+        }
+        RunningTaskInfo info = new RunningTaskInfo()
+                .withThreadName(running.getThread().getName())
+                .withThreadState(running.getThread().getState().name())
+                .withTaskIds(taskIds)
+                .withSnapshotNames(snapshotNames)
+                .withRunningSecs(TimeUnit.MILLISECONDS.toSeconds(AgentClock.get().currentTimeMillis() - running.getStartMillis()));
+        if (withStackTrace) {
+            List<String> stackTrace = Lists.newArrayList();
+            for (StackTraceElement element : running.getThread().getStackTrace()) {
+                stackTrace.add(element.toString());
+            }
+            info.setStackTrace(stackTrace);
+        }
+        return info;
+    }
+
+    /**
+     * Authenticates the request against HANA and checks that the user may administer the agent.
+     *
+     * @return null if the request may proceed, otherwise the response to return
+     */
+    private Response authorize() {
+        List<String> adminUsers = AgentConfig.getInstance().getAdminUsers();
+        if (adminUsers.isEmpty()) {
+            logger.error("The admin resource is disabled, no admin_users are configured");
+            return Response.status(Status.FORBIDDEN).entity("The admin resource is disabled, configure admin_users to enable it").build();
+        }
+        if (!RequestAuthenticator.authenticate(request, sapConnection)) {
+            if (sapConnection.getUnavailableReason() != null) {
+                return Response.status(Status.SERVICE_UNAVAILABLE).entity(sapConnection.getUnavailableReason()).build();
+            }
+            return Response.status(Status.UNAUTHORIZED).build();
+        }
+        String username = RequestAuthenticator.getUsername(request);
+        if (!adminUsers.contains(username)) {
+            logger.error("User " + username + " is not allowed to use the admin resource");
+            sapConnection.disconnect();
+            return Response.status(Status.FORBIDDEN).build();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Source of time for the snapshot task state machine: timeouts, expiry, coalescing windows,
+ * the circuit breaker and the wait after preparing a snapshot all read, sleep or schedule on it.
+ *
+ * The system clock is used unless another clock is installed, e.g. a manually advanced clock
+ * that lets a fault-injection harness replay interleavings without waiting on real time.
+ */
+public abstract class AgentClock {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("agent-clock-%d").setDaemon(true).build());
+
+    public static final AgentClock SYSTEM = new AgentClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+
+        @Override
+        public Future<?> schedule(Runnable command, long delayMillis) {
+            return scheduler.schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    private static volatile AgentClock clock = SYSTEM;
+
+    /**
+     * @return the clock in use
+     */
+    public static AgentClock get() {
+        return clock;
+    }
+
+    /**
+     * Installs a clock, null restores the system clock.
+     *
+     * @param newClock - clock to use from now on
+     */
+    static void set(AgentClock newClock) {
+        clock = newClock == null ? SYSTEM : newClock;
+    }
+
+    /**
+     * @return milliseconds since the epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Waits until the clock has advanced by the given time.
+     *
+     * @param millis - milliseconds to wait
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public abstract void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Runs the command once the clock has advanced by the given time. The command must be short,
+     * it may run on a thread shared by all scheduled commands.
+     *
+     * @param command - command to run
+     * @param delayMillis - milliseconds to wait before running the command
+     * @return a future that cancels the command
+     */
+    public abstract Future<?> schedule(Runnable command, long delayMillis);
+}
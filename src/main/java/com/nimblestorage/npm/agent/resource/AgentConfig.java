@@ -0,0 +1,280 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Agent configuration read once from sap-hana-backup-agent-config.xml.
+ * Optional settings fall back to their defaults when the element is missing or empty.
+ */
+public class AgentConfig {
+    private static final Logger logger = Logger.getLogger(AgentConfig.class);
+    private static final List<String> CONFIG_LOCATIONS = Arrays.asList("./sap-hana-backup-agent-config.xml");
+
+    private static final int DEFAULT_LOGIN_TIMEOUT_SECS = 10;
+    private static final int DEFAULT_QUERY_TIMEOUT_SECS = 120;
+    private static final int DEFAULT_REQUEST_COALESCE_WINDOW_SECS = 600;
+    private static final int DEFAULT_SAMPLER_INTERVAL_SECS = 60;
+    private static final int DEFAULT_METADATA_REFRESH_SECS = 300;
+    private static final String DEFAULT_TLS_KEY_ALGORITHM = "EC";
+    private static final int DEFAULT_TLS_ROTATE_BEFORE_DAYS = 30;
+    private static final int DEFAULT_MAX_CONCURRENT_TASKS = 16;
+
+    private static AgentConfig instance;
+
+    private String hostIp;
+    private String port;
+    private String instanceName;
+    private int loginTimeoutSecs = DEFAULT_LOGIN_TIMEOUT_SECS;
+    private int queryTimeoutSecs = DEFAULT_QUERY_TIMEOUT_SECS;
+    private int requestCoalesceWindowSecs = DEFAULT_REQUEST_COALESCE_WINDOW_SECS;
+    private int samplerIntervalSecs = DEFAULT_SAMPLER_INTERVAL_SECS;
+    private int metadataRefreshSecs = DEFAULT_METADATA_REFRESH_SECS;
+    private String keystorePassword;
+    private String tlsKeyAlgorithm = DEFAULT_TLS_KEY_ALGORITHM;
+    private int tlsRotateBeforeDays = DEFAULT_TLS_ROTATE_BEFORE_DAYS;
+    private String tlsImportPassword;
+    private boolean tlsAutoRotate = false;
+    private int maxConcurrentTasks = DEFAULT_MAX_CONCURRENT_TASKS;
+    private List<String> adminUsers = Collections.emptyList();
+    private String monitoringUser;
+    private String monitoringPassword;
+    private String monitoringUserstoreKey;
+
+    public static synchronized AgentConfig getInstance() {
+        if (instance == null) {
+            instance = new AgentConfig();
+            instance.readConfig();
+        }
+        return instance;
+    }
+
+    public String getHostIp() {
+        return hostIp;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    /**
+     * @return the HANA target in the form host:port/instance
+     */
+    public String getTarget() {
+        return hostIp + ":" + port + "/" + instanceName;
+    }
+
+    /**
+     * @return seconds to wait for the JDBC login to complete
+     */
+    public int getLoginTimeoutSecs() {
+        return loginTimeoutSecs;
+    }
+
+    /**
+     * @return seconds a single HANA statement may run before the driver cancels it
+     */
+    public int getQueryTimeoutSecs() {
+        return queryTimeoutSecs;
+    }
+
+    /**
+     * @return seconds during which a repeated request for the same snapshot joins the earlier task
+     */
+    public int getRequestCoalesceWindowSecs() {
+        return requestCoalesceWindowSecs;
+    }
+
+    /**
+     * @return seconds between samples of the HANA monitoring views, 0 if sampling is disabled
+     */
+    public int getSamplerIntervalSecs() {
+        return samplerIntervalSecs;
+    }
+
+    /**
+     * @return seconds between refreshes of the HANA metadata attached to snapshots, 0 if disabled
+     */
+    public int getMetadataRefreshSecs() {
+        return metadataRefreshSecs;
+    }
+
+    /**
+     * @return password of the server keystore, null to use the built-in password
+     */
+    public String getKeystorePassword() {
+        return keystorePassword;
+    }
+
+    /**
+     * @return key algorithm of generated server certificates, EC (P-256) or RSA (3072 bit)
+     */
+    public String getTlsKeyAlgorithm() {
+        return tlsKeyAlgorithm;
+    }
+
+    /**
+     * @return days before expiry at which a self-signed server certificate is due for replacement
+     */
+    public int getTlsRotateBeforeDays() {
+        return tlsRotateBeforeDays;
+    }
+
+    /**
+     * @return password of a PKCS12 file with a CA-signed certificate to import, null if it has none
+     */
+    public String getTlsImportPassword() {
+        return tlsImportPassword;
+    }
+
+    /**
+     * @return true if weak or expiring self-signed server certificates are replaced without
+     *         an operator promoting the replacement through the admin resource
+     */
+    public boolean isTlsAutoRotate() {
+        return tlsAutoRotate;
+    }
+
+    /**
+     * @return number of snapshot task steps that may run against HANA at the same time
+     */
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    /**
+     * @return HANA users allowed to use the admin resource, empty if the admin resource is disabled
+     */
+    public List<String> getAdminUsers() {
+        return adminUsers;
+    }
+
+    /**
+     * @return HANA user for background monitoring, null if none is configured
+     */
+    public String getMonitoringUser() {
+        return monitoringUser;
+    }
+
+    public String getMonitoringPassword() {
+        return monitoringPassword;
+    }
+
+    /**
+     * @return hdbuserstore key with the connection and credentials for background monitoring,
+     *         null if none is configured
+     */
+    public String getMonitoringUserstoreKey() {
+        return monitoringUserstoreKey;
+    }
+
+    /**
+     * @return true if credentials for background monitoring are configured, either a user and
+     *         password or an hdbuserstore key
+     */
+    public boolean hasMonitoringCredentials() {
+        return monitoringUserstoreKey != null || (monitoringUser != null && monitoringPassword != null);
+    }
+
+    private void readConfig() {
+        // Load config file
+        File fileConfig = null;
+        for (String location : CONFIG_LOCATIONS) {
+            fileConfig = new File(location);
+            if (fileConfig.exists() && fileConfig.isFile()) {
+                break;
+            } else {
+                fileConfig = null;
+            }
+        }
+        // Read XML
+        if (fileConfig != null) {
+            try {
+                DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+                Document doc = dBuilder.parse(fileConfig);
+                doc.getDocumentElement().normalize();
+                NodeList nList = doc.getElementsByTagName("sap_hana_backup_agent");
+                Node nNode = nList.item(0);
+                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
+                    Element eElement = (Element) nNode;
+                    hostIp = eElement.getElementsByTagName("host_ip").item(0).getTextContent();
+                    port = eElement.getElementsByTagName("port").item(0).getTextContent();
+                    instanceName = eElement.getElementsByTagName("instance").item(0).getTextContent();
+                    loginTimeoutSecs = getIntValue(eElement, "login_timeout_secs", DEFAULT_LOGIN_TIMEOUT_SECS);
+                    queryTimeoutSecs = getIntValue(eElement, "query_timeout_secs", DEFAULT_QUERY_TIMEOUT_SECS);
+                    requestCoalesceWindowSecs = getIntValue(eElement, "request_coalesce_window_secs", DEFAULT_REQUEST_COALESCE_WINDOW_SECS);
+                    samplerIntervalSecs = getIntValue(eElement, "sampler_interval_secs", DEFAULT_SAMPLER_INTERVAL_SECS);
+                    metadataRefreshSecs = getIntValue(eElement, "metadata_refresh_secs", DEFAULT_METADATA_REFRESH_SECS);
+                    keystorePassword = getValue(eElement, "keystore_password");
+                    tlsRotateBeforeDays = getIntValue(eElement, "tls_rotate_before_days", DEFAULT_TLS_ROTATE_BEFORE_DAYS);
+                    tlsImportPassword = getValue(eElement, "tls_import_password");
+                    tlsAutoRotate = Boolean.parseBoolean(getValue(eElement, "tls_auto_rotate"));
+                    maxConcurrentTasks = Math.max(1, getIntValue(eElement, "max_concurrent_tasks", DEFAULT_MAX_CONCURRENT_TASKS));
+                    String admins = getValue(eElement, "admin_users");
+                    if (admins != null) {
+                        adminUsers = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(admins);
+                    }
+                    monitoringUser = getValue(eElement, "monitoring_user");
+                    monitoringPassword = getValue(eElement, "monitoring_password");
+                    monitoringUserstoreKey = getValue(eElement, "monitoring_userstore_key");
+                    String keyAlgorithm = getValue(eElement, "tls_key_algorithm");
+                    if (keyAlgorithm != null) {
+                        if (keyAlgorithm.equalsIgnoreCase("EC") || keyAlgorithm.equalsIgnoreCase("RSA")) {
+                            tlsKeyAlgorithm = keyAlgorithm.toUpperCase();
+                        } else {
+                            logger.error("Invalid value '" + keyAlgorithm + "' for tls_key_algorithm, using default " + DEFAULT_TLS_KEY_ALGORITHM);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Failed to read config file", e);
+            }
+        } else {
+            logger.error("Failed to find config file");
+        }
+    }
+
+    private static String getValue(Element element, String tagName) {
+        NodeList nodes = element.getElementsByTagName(tagName);
+        if (nodes.getLength() == 0) {
+            return null;
+        }
+        String value = nodes.item(0).getTextContent();
+        return Strings.isNullOrEmpty(value) ? null : value.trim();
+    }
+
+    private static int getIntValue(Element element, String tagName, int defaultValue) {
+        String value = getValue(element, tagName);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.error("Invalid value '" + value + "' for " + tagName + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
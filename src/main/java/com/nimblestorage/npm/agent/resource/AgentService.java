@@ -5,8 +5,6 @@ package com.nimblestorage.npm.agent.resource;
 
 import java.io.File;
 import java.net.InetAddress;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -52,22 +50,21 @@ public class AgentService {
             String hostIpAddress = ip.getHostAddress();
             logger.info("host ip address : " + hostIpAddress);
 
-            if (!Files.exists(Paths.get(SERVER_KEY_STORE))) {
-                List<GeneralName> sans = Lists.newArrayList();
-                sans.add(new GeneralName(GeneralName.iPAddress, "127.0.0.1"));
-                sans.add(new GeneralName(GeneralName.iPAddress, hostIpAddress));
+            List<GeneralName> sans = Lists.newArrayList();
+            sans.add(new GeneralName(GeneralName.iPAddress, "127.0.0.1"));
+            sans.add(new GeneralName(GeneralName.iPAddress, hostIpAddress));
 
-                SslUtil.generateAndStoreKeyAndCertificate("localhost", sans, SERVER_CERT_ALIAS, SERVER_KEY_STORE, storeKey);
-            }
+            String keystorePassword = AgentConfig.getInstance().getKeystorePassword();
+            char[] passwd = keystorePassword == null ? storeKey : keystorePassword.toCharArray();
+            CertificateManager certificateManager = new CertificateManager(SERVER_KEY_STORE, SERVER_CERT_ALIAS, passwd, sans);
+            certificateManager.initialize();
 
+            // The server certificate is served from the certificate manager, so it can be rotated without a restart
             SslConnector sslConnector = new SslSocketConnector();
             sslConnector.setPort(port);
             sslConnector.getSslContextFactory().addExcludeProtocols(EXCLUDE_PROTOCOLS);
             sslConnector.getSslContextFactory().setIncludeProtocols(INCLUDE_PROTOCOLS);
-            sslConnector.getSslContextFactory().setCertAlias(SERVER_CERT_ALIAS);
-            sslConnector.getSslContextFactory().setKeyStorePath(SERVER_KEY_STORE);
-            sslConnector.getSslContextFactory().setKeyStorePassword(new String(storeKey));
-            sslConnector.getSslContextFactory().setKeyStoreType("JCEKS");
+            sslConnector.getSslContextFactory().setSslContext(certificateManager.createSslContext());
 
             ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
             context.setContextPath("/");
@@ -81,8 +78,15 @@ public class AgentService {
             // Tells the Jersey Servlet which REST service/class to load.
             jerseyServlet.setInitParameter("jersey.config.server.provider.packages", "com.nimblestorage.npm.agent.resource");
 
+            // Tune the snapshot wait and timeout from HANA statistics in the background
+            HanaSampler.start(AgentConfig.getInstance().getSamplerIntervalSecs());
+            // Keep the HANA metadata attached to snapshots cached
+            HanaMetadataProvider.start(AgentConfig.getInstance().getMetadataRefreshSecs());
+
             // Start the test REST server
             jettyServer.start();
+            // Reload a changed keystore and generate the next certificate in the background
+            certificateManager.start();
             jettyServer.join();
         } catch (Exception e) {
             logger.error("Failed to start agent ", e);
@@ -0,0 +1,342 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.GeneralName;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Owns the server certificate of the agent and rotates it without restarting Jetty.
+ *
+ * Jetty is given an SSLContext backed by a {@link ReloadableKeyManager}. The keystore directory
+ * is watched, and a changed keystore is loaded into the key manager, so new handshakes use the new
+ * certificate while established connections and sessions carry on with the old one.
+ *
+ * A replacement key is generated ahead of time in the background and kept in the keystore under
+ * a separate alias. Arrays that pinned the current certificate reject a new one, so the replacement
+ * is only promoted by rotate(), called through the admin resource, or automatically for self-signed
+ * certificates with a weak key or close to expiry when tls_auto_rotate is set.
+ * A CA-signed certificate is imported by dropping a PKCS12 file named import.p12 next to the keystore.
+ */
+public class CertificateManager {
+    private static final Logger logger = Logger.getLogger(CertificateManager.class);
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("tls-rotation-%d").setDaemon(true).build());
+
+    private static final String IMPORT_KEY_STORE_TYPE = "PKCS12";
+    private static final String IMPORT_FILE = "import.p12";
+    private static final String IMPORTED_SUFFIX = ".imported";
+    private static final String NEXT_ALIAS_SUFFIX = "_next";
+    private static final String CN = "localhost";
+
+    private static final int CHECK_INTERVAL_HOURS = 24;
+    // Lets the writer of a keystore finish before it is read
+    private static final long RELOAD_DELAY_MILLIS = 500;
+    private static final int SESSION_CACHE_SIZE = 10000;
+    private static final int SESSION_TIMEOUT_SECS = 24 * 60 * 60;
+
+    private final Path keystorePath;
+    private final Path importPath;
+    private final String alias;
+    private final String nextAlias;
+    private final char[] passwd;
+    private final List<GeneralName> subjectAltNames;
+    private final String keyAlgorithm;
+    private final char[] importPasswd;
+    private final long rotateBeforeMillis;
+    private final boolean autoRotate;
+    private final ReloadableKeyManager keyManager;
+
+    private static volatile CertificateManager instance;
+
+    /**
+     * @param keystoreFilename - keystore of the server certificate
+     * @param alias - alias of the server certificate
+     * @param passwd - keystore and key password
+     * @param subjectAltNames - ip addresses of generated certificates
+     */
+    public CertificateManager(String keystoreFilename, String alias, char[] passwd, List<GeneralName> subjectAltNames) {
+        AgentConfig config = AgentConfig.getInstance();
+        this.keystorePath = Paths.get(keystoreFilename).toAbsolutePath();
+        this.importPath = keystorePath.resolveSibling(IMPORT_FILE);
+        this.alias = alias;
+        this.nextAlias = alias + NEXT_ALIAS_SUFFIX;
+        this.passwd = passwd.clone();
+        this.subjectAltNames = Collections.unmodifiableList(subjectAltNames);
+        this.keyAlgorithm = config.getTlsKeyAlgorithm();
+        this.importPasswd = config.getTlsImportPassword() == null ? new char[0] : config.getTlsImportPassword().toCharArray();
+        this.rotateBeforeMillis = TimeUnit.DAYS.toMillis(config.getTlsRotateBeforeDays());
+        this.autoRotate = config.isTlsAutoRotate();
+        this.keyManager = new ReloadableKeyManager(alias);
+    }
+
+    /**
+     * Creates the keystore if there is none, imports a pending CA-signed certificate and
+     * loads the server certificate.
+     */
+    public synchronized void initialize() throws Exception {
+        if (!Files.exists(keystorePath)) {
+            logger.info("Generating " + keyAlgorithm + " server certificate");
+            SslUtil.generateAndStoreKeyAndCertificate(CN, subjectAltNames, alias, keystorePath.toString(), passwd, keyAlgorithm);
+        }
+        importCertificate();
+        reload();
+    }
+
+    /**
+     * @return an SSLContext for Jetty that serves the current server certificate and caches sessions for resumption
+     */
+    public SSLContext createSslContext() throws Exception {
+        // Stateless session tickets where the JDK supports them; read when JSSE initializes
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[] { keyManager }, null, null);
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECS);
+        return sslContext;
+    }
+
+    /**
+     * @return the certificate manager of the running agent, null before it is started
+     */
+    public static CertificateManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts watching the keystore directory and checking the certificate in the background.
+     */
+    public void start() {
+        instance = this;
+        Thread watcher = new ThreadFactoryBuilder().setNameFormat("tls-keystore-watcher").setDaemon(true).build().newThread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        });
+        watcher.start();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkCertificate();
+            }
+        }, 0, CHECK_INTERVAL_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * @return the server certificate in use
+     */
+    public X509Certificate getCertificate() {
+        return keyManager.getCertificate();
+    }
+
+    /**
+     * Replaces the server certificate with the pre-generated one and generates the next one.
+     */
+    public synchronized void rotate() throws Exception {
+        KeyStore keyStore = SslUtil.getKeystoreFromFile(keystorePath.toString(), passwd);
+        if (!isUsable((X509Certificate) keyStore.getCertificate(nextAlias))) {
+            logger.info("Generating " + keyAlgorithm + " server certificate");
+            SslUtil.generateKeyAndCertificate(keyStore, CN, subjectAltNames, nextAlias, passwd, keyAlgorithm);
+        }
+        keyStore.setKeyEntry(alias, keyStore.getKey(nextAlias, passwd), passwd, keyStore.getCertificateChain(nextAlias));
+        keyStore.deleteEntry(nextAlias);
+        SslUtil.writeKeystore(keyStore, keystorePath.toString(), passwd);
+        reload();
+        logger.warn("Rotated the server certificate; arrays that trust the previous certificate have to accept the new one");
+
+        pregenerate(keyStore);
+    }
+
+    /**
+     * Loads the server certificate from the keystore. A keystore that cannot be read
+     * leaves the certificate in use unchanged.
+     */
+    synchronized void reload() throws Exception {
+        KeyStore keyStore = SslUtil.getKeystoreFromFile(keystorePath.toString(), passwd);
+        Key key = keyStore.getKey(alias, passwd);
+        Certificate[] chain = keyStore.getCertificateChain(alias);
+        if (!(key instanceof PrivateKey) || chain == null || chain.length == 0) {
+            throw new Exception("No server key " + alias + " in " + keystorePath);
+        }
+        X509Certificate[] x509Chain = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            x509Chain[i] = (X509Certificate) chain[i];
+        }
+        if (keyManager.update((PrivateKey) key, x509Chain)) {
+            logger.info("Loaded server certificate " + x509Chain[0].getSubjectX500Principal() + " issued by " + x509Chain[0].getIssuerX500Principal()
+                    + ", " + x509Chain[0].getPublicKey().getAlgorithm() + " key, valid until " + x509Chain[0].getNotAfter());
+        }
+    }
+
+    /**
+     * Makes sure the next key is generated ahead of time, and flags a self-signed certificate
+     * with a weak key or close to expiry. Such a certificate is only rotated here when
+     * tls_auto_rotate is set.
+     */
+    synchronized void checkCertificate() {
+        try {
+            X509Certificate certificate = keyManager.getCertificate();
+            if (certificate == null) {
+                return;
+            }
+            if (!SslUtil.isSelfSigned(certificate)) {
+                if (isExpiring(certificate)) {
+                    logger.warn("The imported server certificate expires on " + certificate.getNotAfter() + ", import a renewed certificate as " + importPath);
+                }
+                return;
+            }
+            boolean due = SslUtil.isWeakKey(certificate) || isExpiring(certificate);
+            if (due && autoRotate) {
+                logger.warn("Replacing the " + certificate.getPublicKey().getAlgorithm() + " server certificate valid until "
+                        + certificate.getNotAfter() + " with a " + keyAlgorithm + " certificate");
+                rotate();
+                return;
+            }
+            pregenerate(SslUtil.getKeystoreFromFile(keystorePath.toString(), passwd));
+            if (due) {
+                logger.warn("The " + certificate.getPublicKey().getAlgorithm() + " server certificate valid until " + certificate.getNotAfter()
+                        + " should be replaced. A " + keyAlgorithm + " replacement is ready; promote it with POST /rest/v1/admin/certificate/rotate"
+                        + " once the arrays accept it, or set tls_auto_rotate");
+            }
+        } catch (Exception e) {
+            logger.error("Failed to check the server certificate", e);
+        }
+    }
+
+    /**
+     * Imports the key and certificate chain of a pending PKCS12 file as the server certificate.
+     *
+     * @return true if a certificate was imported
+     */
+    synchronized boolean importCertificate() {
+        if (!Files.exists(importPath)) {
+            return false;
+        }
+        try {
+            KeyStore importStore = KeyStore.getInstance(IMPORT_KEY_STORE_TYPE);
+            try (InputStream fis = new FileInputStream(importPath.toFile())) {
+                importStore.load(fis, importPasswd);
+            }
+            String importAlias = null;
+            for (String candidate : Collections.list(importStore.aliases())) {
+                if (importStore.isKeyEntry(candidate)) {
+                    importAlias = candidate;
+                    break;
+                }
+            }
+            if (importAlias == null) {
+                throw new Exception("No private key in " + importPath);
+            }
+            Certificate[] chain = importStore.getCertificateChain(importAlias);
+            Key key = importStore.getKey(importAlias, importPasswd);
+            if (chain == null || chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+                throw new Exception("No certificate chain for " + importAlias + " in " + importPath);
+            }
+
+            KeyStore keyStore = SslUtil.getKeystoreFromFile(keystorePath.toString(), passwd);
+            keyStore.setKeyEntry(alias, key, passwd, chain);
+            if (keyStore.containsAlias(nextAlias)) {
+                keyStore.deleteEntry(nextAlias);
+            }
+            SslUtil.writeKeystore(keyStore, keystorePath.toString(), passwd);
+            Files.move(importPath, importPath.resolveSibling(IMPORT_FILE + IMPORTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Imported server certificate " + ((X509Certificate) chain[0]).getSubjectX500Principal() + " from " + importPath);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to import the server certificate from " + importPath, e);
+            return false;
+        }
+    }
+
+    private void pregenerate(KeyStore keyStore) throws Exception {
+        if (isUsable((X509Certificate) keyStore.getCertificate(nextAlias))) {
+            return;
+        }
+        logger.info("Generating the next " + keyAlgorithm + " server certificate");
+        SslUtil.generateKeyAndCertificate(keyStore, CN, subjectAltNames, nextAlias, passwd, keyAlgorithm);
+        SslUtil.writeKeystore(keyStore, keystorePath.toString(), passwd);
+    }
+
+    private boolean isUsable(X509Certificate certificate) {
+        if (certificate == null || SslUtil.isWeakKey(certificate) || isExpiring(certificate)) {
+            return false;
+        }
+        String algorithm = certificate.getPublicKey().getAlgorithm();
+        return SslUtil.EC.equalsIgnoreCase(keyAlgorithm) ? algorithm.startsWith(SslUtil.EC) : SslUtil.RSA.equals(algorithm);
+    }
+
+    private boolean isExpiring(X509Certificate certificate) {
+        return certificate.getNotAfter().getTime() - System.currentTimeMillis() < rotateBeforeMillis;
+    }
+
+    private void watch() {
+        Path directory = keystorePath.getParent();
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watchService.take();
+                Thread.sleep(RELOAD_DELAY_MILLIS);
+                boolean keystoreChanged = false;
+                boolean importChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || keystorePath.getFileName().equals(event.context())) {
+                        keystoreChanged = true;
+                    } else if (importPath.getFileName().equals(event.context())) {
+                        importChanged = true;
+                    }
+                }
+                if (!key.reset()) {
+                    logger.error("Stopped watching " + directory + ", certificate changes need a restart");
+                    return;
+                }
+                if (importChanged) {
+                    keystoreChanged |= importCertificate();
+                }
+                if (keystoreChanged) {
+                    try {
+                        reload();
+                    } catch (Exception e) {
+                        logger.error("Failed to reload " + keystorePath + ", keeping the current server certificate", e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Failed to watch " + directory + ", certificate changes need a restart", e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.text.MessageFormat;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Circuit breaker guarding calls to a single SAP HANA target.
+ *
+ * The breaker keeps the outcome of the last WINDOW_SIZE calls. Once at least MINIMUM_CALLS
+ * have been recorded and the failure rate reaches FAILURE_RATE_PERCENT the breaker opens and
+ * rejects calls for OPEN_SECS. After that a single probe call is let through (half-open);
+ * its outcome either closes the breaker again or re-opens it.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+    private static final ConcurrentMap<String, CircuitBreaker> breakers = Maps.newConcurrentMap(); //target, breaker
+
+    private static final int WINDOW_SIZE = 10;
+    private static final int MINIMUM_CALLS = 3;
+    private static final int FAILURE_RATE_PERCENT = 50;
+    private static final long OPEN_SECS = 30;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String target;
+    private final boolean[] window = new boolean[WINDOW_SIZE]; // true = failure
+    private int windowIndex = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    private State state = State.CLOSED;
+    private long openedAtMillis = 0;
+    private boolean probeInFlight = false;
+    private String lastFailure;
+
+    CircuitBreaker(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @param target - HANA target in the form host:port/instance
+     * @return the breaker shared by all calls to the target
+     */
+    public static CircuitBreaker forTarget(String target) {
+        CircuitBreaker breaker = breakers.get(target);
+        if (breaker == null) {
+            CircuitBreaker newBreaker = new CircuitBreaker(target);
+            breaker = breakers.putIfAbsent(target, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Asks for permission to call HANA. Every granted call must be followed by
+     * recordSuccess() or recordFailure().
+     *
+     * @return true if the call may proceed
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (AgentClock.get().currentTimeMillis() - openedAtMillis < TimeUnit.SECONDS.toMillis(OPEN_SECS)) {
+                return false;
+            }
+            logger.info("Circuit for " + target + " is half-open, probing HANA");
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state == State.HALF_OPEN) {
+            logger.info("Circuit for " + target + " closed, HANA is reachable again");
+            resetWindow();
+            state = State.CLOSED;
+            probeInFlight = false;
+        }
+        record(false);
+    }
+
+    public synchronized void recordFailure(String reason) {
+        lastFailure = reason;
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && windowCount >= MINIMUM_CALLS
+                && windowFailures * 100 >= windowCount * FAILURE_RATE_PERCENT) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return a message explaining why calls are currently being rejected
+     */
+    public synchronized String describe() {
+        return MessageFormat.format("SAP HANA at {0} is unavailable ({1} of last {2} calls failed, last error: {3}). Next attempt in {4} seconds",
+                target, windowFailures, windowCount, lastFailure, getRetryAfterSecs());
+    }
+
+    /**
+     * @return seconds until the breaker lets the next call through, 0 if it is not open
+     */
+    public synchronized long getRetryAfterSecs() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        long elapsed = AgentClock.get().currentTimeMillis() - openedAtMillis;
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(TimeUnit.SECONDS.toMillis(OPEN_SECS) - elapsed));
+    }
+
+    private void open() {
+        logger.error(MessageFormat.format("Circuit for {0} opened for {1} seconds: {2} of last {3} calls failed, last error: {4}",
+                target, OPEN_SECS, windowFailures, windowCount, lastFailure));
+        state = State.OPEN;
+        openedAtMillis = AgentClock.get().currentTimeMillis();
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == WINDOW_SIZE) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+    }
+
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+}
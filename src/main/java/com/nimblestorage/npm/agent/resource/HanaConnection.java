@@ -0,0 +1,70 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+
+/**
+ * Session with a SAP HANA target as used by the snapshot tasks and the background monitors.
+ * Implemented by SAPAgent over JDBC; a stub can be installed with HanaConnections.setFactory().
+ */
+public interface HanaConnection {
+
+    /**
+     * Connects unless already connected. If HANA cannot be reached getUnavailableReason() explains why.
+     */
+    void connect(String dbUser, String dbPass, String encodedAuthStr);
+
+    /**
+     * Connects with the monitoring credentials of the agent configuration.
+     *
+     * @return true if connected, false if no monitoring credentials are configured or they did not work
+     */
+    boolean connectForMonitoring();
+
+    boolean isConnected();
+
+    /**
+     * Checks that the session still works, e.g. after it sat idle in the snapshot pipeline,
+     * and connects again with the same credentials if HANA dropped it.
+     *
+     * @return true if the session is connected
+     */
+    boolean revalidate();
+
+    Boolean sapAuthenticate(String authVal);
+
+    /**
+     * @return the reason the last connection attempt could not reach HANA, null if HANA was reachable
+     */
+    String getUnavailableReason();
+
+    /**
+     * @return the HANA target, in the form host:port/instance
+     */
+    String getTarget();
+
+    /**
+     * Prepares a data snapshot and waits for HANA to write it.
+     *
+     * @param waitSecs - seconds to wait before committing
+     * @return the backup id of the prepared snapshot
+     */
+    String sapPreSnapshot(int waitSecs) throws SQLException;
+
+    /**
+     * Closes the prepared data snapshot.
+     *
+     * @param backupSuccess - true to confirm the snapshot, false to discard it
+     * @param backupId - backup id of the prepared snapshot
+     * @param snapId - external id recorded with a confirmed snapshot
+     */
+    void sapPostSnapshot(Boolean backupSuccess, String backupId, String snapId) throws SQLException;
+
+    HanaStatistics sapStatistics() throws SQLException;
+
+    HanaMetadata sapMetadata() throws SQLException;
+
+    void disconnect();
+}
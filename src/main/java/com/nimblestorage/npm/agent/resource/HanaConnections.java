@@ -0,0 +1,40 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Creates the HANA connections of the agent. SAPAgent is used unless another factory
+ * is installed, e.g. a stubbed HANA for fault injection.
+ */
+public class HanaConnections {
+    private static final Supplier<HanaConnection> DEFAULT_FACTORY = new Supplier<HanaConnection>() {
+        @Override
+        public HanaConnection get() {
+            return new SAPAgent();
+        }
+    };
+
+    private static volatile Supplier<HanaConnection> factory = DEFAULT_FACTORY;
+
+    private HanaConnections() {
+    }
+
+    /**
+     * @return a new, unconnected HANA connection
+     */
+    public static HanaConnection newConnection() {
+        return factory.get();
+    }
+
+    /**
+     * Installs a connection factory, null restores SAPAgent.
+     *
+     * @param newFactory - factory used for all connections created from now on
+     */
+    static void setFactory(Supplier<HanaConnection> newFactory) {
+        factory = newFactory == null ? DEFAULT_FACTORY : newFactory;
+    }
+}
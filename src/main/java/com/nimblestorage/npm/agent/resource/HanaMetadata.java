@@ -0,0 +1,100 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.nimblestorage.npm.agent.resource.data.KeyValue;
+
+/**
+ * Description of a HANA system that is attached to the snapshots of its volumes,
+ * so a restore can find the right snapshot without querying HANA.
+ */
+public class HanaMetadata {
+    public static final String SID_KEY = "sap.hana.sid";
+    public static final String DATABASE_KEY = "sap.hana.database";
+    public static final String VERSION_KEY = "sap.hana.version";
+    public static final String LANDSCAPE_KEY = "sap.hana.landscape";
+    public static final String LOG_POSITION_KEY = "sap.hana.log_position";
+    public static final String METADATA_TIME_KEY = "sap.hana.metadata_time";
+    public static final String BACKUP_ID_KEY = "sap.hana.backup_id";
+
+    private final String sid;
+    private final String databaseName;
+    private final String version;
+    private final String landscape;
+    private final String logPosition;
+    private final long timestampMillis;
+
+    /**
+     * @param sid - system id
+     * @param databaseName - database name
+     * @param version - HANA version
+     * @param landscape - hosts of the system with their index server role, e.g. hana1:MASTER,hana2:SLAVE
+     * @param logPosition - highest log position written when the metadata was read
+     * @param timestampMillis - time the metadata was read
+     */
+    public HanaMetadata(String sid, String databaseName, String version, String landscape, String logPosition, long timestampMillis) {
+        this.sid = sid;
+        this.databaseName = databaseName;
+        this.version = version;
+        this.landscape = landscape;
+        this.logPosition = logPosition;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public String getSid() {
+        return sid;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getLandscape() {
+        return landscape;
+    }
+
+    public String getLogPosition() {
+        return logPosition;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the metadata as key-value pairs for a volume snapshot, without the values HANA
+     *         did not report; the log position is the one read at getTimestampMillis(), not at
+     *         the time of the snapshot
+     */
+    public List<KeyValue> toKeyValues() {
+        List<KeyValue> metadata = Lists.newArrayList();
+        addKeyValue(metadata, SID_KEY, sid);
+        addKeyValue(metadata, DATABASE_KEY, databaseName);
+        addKeyValue(metadata, VERSION_KEY, version);
+        addKeyValue(metadata, LANDSCAPE_KEY, landscape);
+        addKeyValue(metadata, LOG_POSITION_KEY, logPosition);
+        addKeyValue(metadata, METADATA_TIME_KEY, Long.toString(timestampMillis));
+        return metadata;
+    }
+
+    /**
+     * Adds the key-value pair unless the value is null, which the array rejects as snapshot metadata.
+     *
+     * @param metadata - key-value pairs to add to
+     * @param key
+     * @param value
+     */
+    static void addKeyValue(List<KeyValue> metadata, String key, String value) {
+        if (value != null) {
+            metadata.add(new KeyValue(key, value));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nimblestorage.npm.agent.resource.data.KeyValue;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+import com.nimblestorage.npm.agent.resource.data.Volume;
+
+/**
+ * Caches the metadata of a HANA target that is attached to volume snapshots.
+ *
+ * The metadata is refreshed in the background, so tagging a snapshot never queries HANA.
+ * Metadata older than its time to live is not attached.
+ */
+public class HanaMetadataProvider {
+    private static final Logger logger = Logger.getLogger(HanaMetadataProvider.class);
+    private static final ConcurrentMap<String, HanaMetadataProvider> providers = Maps.newConcurrentMap(); //target, provider
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hana-metadata-%d").setDaemon(true).build());
+
+    // Retry interval while no metadata could be read yet, e.g. before the first authenticated request
+    private static final int INITIAL_REFRESH_SECS = 30;
+
+    private final String target;
+    private volatile HanaMetadata metadata = null;
+    private volatile long ttlMillis = 0;
+
+    HanaMetadataProvider(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @param target - HANA target in the form host:port/instance
+     * @return the metadata provider of the target
+     */
+    public static HanaMetadataProvider forTarget(String target) {
+        HanaMetadataProvider provider = providers.get(target);
+        if (provider == null) {
+            HanaMetadataProvider newProvider = new HanaMetadataProvider(target);
+            provider = providers.putIfAbsent(target, newProvider);
+            if (provider == null) {
+                provider = newProvider;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Starts refreshing the metadata of the configured HANA target in the background.
+     *
+     * Refreshing needs the monitoring credentials of the agent configuration.
+     *
+     * @param refreshSecs - seconds between refreshes; metadata expires after twice this time. 0 disables metadata.
+     */
+    public static void start(int refreshSecs) {
+        if (refreshSecs <= 0) {
+            logger.info("HANA snapshot metadata is disabled");
+            return;
+        }
+        if (!AgentConfig.getInstance().hasMonitoringCredentials()) {
+            logger.info("HANA snapshot metadata is disabled as no monitoring credentials are configured");
+            return;
+        }
+        final HanaMetadataProvider provider = forTarget(AgentConfig.getInstance().getTarget());
+        provider.ttlMillis = TimeUnit.SECONDS.toMillis(2L * refreshSecs);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (provider.metadata == null) {
+                    provider.refresh();
+                }
+            }
+        }, INITIAL_REFRESH_SECS, INITIAL_REFRESH_SECS, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                provider.refresh();
+            }
+        }, refreshSecs, refreshSecs, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the cached metadata, or null if there is none or it has expired
+     */
+    public HanaMetadata getMetadata() {
+        HanaMetadata current = metadata;
+        if (current == null || AgentClock.get().currentTimeMillis() - current.getTimestampMillis() > ttlMillis) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Attaches the cached metadata and the backup id to the volumes of the task.
+     * Existing metadata of the volumes is kept.
+     *
+     * @param snapTask - task whose volumes are tagged
+     * @param backupId - id of the HANA backup the snapshot belongs to, null if HANA reported none
+     */
+    public void tagVolumes(SnapshotTask snapTask, String backupId) {
+        if (snapTask.getVolumes() == null) {
+            return;
+        }
+        HanaMetadata current = getMetadata();
+        for (Volume vol : snapTask.getVolumes()) {
+            List<KeyValue> volMetadata = Lists.newArrayList();
+            if (vol.getMetadata() != null) {
+                volMetadata.addAll(vol.getMetadata());
+            }
+            HanaMetadata.addKeyValue(volMetadata, HanaMetadata.BACKUP_ID_KEY, backupId);
+            if (current != null) {
+                volMetadata.addAll(current.toKeyValues());
+            }
+            vol.setMetadata(volMetadata);
+        }
+    }
+
+    void refresh() {
+        HanaConnection sapConnection;
+        try {
+            sapConnection = HanaConnections.newConnection();
+        } catch (Exception e) {
+            logger.error("HANA metadata refresh failed", e);
+            return;
+        }
+        if (!sapConnection.connectForMonitoring()) {
+            logger.debug("Skipping HANA metadata refresh for " + target + ": not connected");
+            return;
+        }
+        try {
+            metadata = sapConnection.sapMetadata();
+            logger.debug("Refreshed HANA metadata for " + target);
+        } catch (SQLException e) {
+            logger.error("HANA metadata refresh failed for " + target, e);
+        } catch (RuntimeException e) {
+            logger.error("HANA metadata refresh failed for " + target, e);
+        } finally {
+            sapConnection.disconnect();
+        }
+    }
+}
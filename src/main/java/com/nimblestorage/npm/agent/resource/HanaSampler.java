@@ -0,0 +1,200 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically samples HANA monitoring views of a target into a fixed-size ring buffer
+ * and derives the wait after preparing a snapshot and the task timeout from them.
+ *
+ * The wait gives HANA time to flush the snapshot to the data volumes, so it follows the
+ * longest recent savepoint, scaled up when the data volumes are busy writing. The timeout
+ * has to cover a whole prepare to close cycle, so it follows the longest recent data
+ * snapshot in the backup catalog. Until samples are available the defaults are used.
+ */
+public class HanaSampler {
+    private static final Logger logger = Logger.getLogger(HanaSampler.class);
+    private static final ConcurrentMap<String, HanaSampler> samplers = Maps.newConcurrentMap(); //target, sampler
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hana-sampler-%d").setDaemon(true).build());
+
+    public static final int DEFAULT_WAIT_SECS = 60;
+    public static final int DEFAULT_TIMEOUT_SECS = 600;
+
+    private static final int RING_SIZE = 60;
+    public static final int DEFAULT_MIN_WAIT_SECS = 10;
+    public static final int DEFAULT_MAX_WAIT_SECS = DEFAULT_WAIT_SECS;
+    private static final int WAIT_SAFETY_SECS = 5;
+    private static final int MIN_TIMEOUT_SECS = 300;
+    private static final int MAX_TIMEOUT_SECS = 1800;
+
+    private final String target;
+    private final HanaStatistics[] ring = new HanaStatistics[RING_SIZE];
+    private int ringIndex = 0;
+    private int ringCount = 0;
+    private int recommendedWaitSecs = DEFAULT_WAIT_SECS;
+    private int recommendedTimeoutSecs = DEFAULT_TIMEOUT_SECS;
+    private int minWaitSecs = DEFAULT_MIN_WAIT_SECS;
+    private int maxWaitSecs = DEFAULT_MAX_WAIT_SECS;
+
+    HanaSampler(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @param target - HANA target in the form host:port/instance
+     * @return the sampler of the target
+     */
+    public static HanaSampler forTarget(String target) {
+        HanaSampler sampler = samplers.get(target);
+        if (sampler == null) {
+            HanaSampler newSampler = new HanaSampler(target);
+            sampler = samplers.putIfAbsent(target, newSampler);
+            if (sampler == null) {
+                sampler = newSampler;
+            }
+        }
+        return sampler;
+    }
+
+    /**
+     * Starts sampling the configured HANA target in the background.
+     *
+     * Sampling needs the monitoring credentials of the agent configuration.
+     *
+     * @param intervalSecs - seconds between samples, 0 disables sampling
+     */
+    public static void start(int intervalSecs) {
+        if (intervalSecs <= 0) {
+            logger.info("HANA sampling is disabled, using a wait of " + DEFAULT_WAIT_SECS + " seconds and a timeout of " + DEFAULT_TIMEOUT_SECS + " seconds");
+            return;
+        }
+        if (!AgentConfig.getInstance().hasMonitoringCredentials()) {
+            logger.info("HANA sampling is disabled as no monitoring credentials are configured, using a wait of " + DEFAULT_WAIT_SECS
+                    + " seconds and a timeout of " + DEFAULT_TIMEOUT_SECS + " seconds");
+            return;
+        }
+        final HanaSampler sampler = forTarget(AgentConfig.getInstance().getTarget());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sampler.sample();
+            }
+        }, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return seconds to wait after preparing a snapshot before committing it
+     */
+    public synchronized int getRecommendedWaitSecs() {
+        return recommendedWaitSecs;
+    }
+
+    /**
+     * @return seconds a prepared snapshot may stay open before it is closed as failed
+     */
+    public synchronized int getRecommendedTimeoutSecs() {
+        return recommendedTimeoutSecs;
+    }
+
+    public synchronized int getMinWaitSecs() {
+        return minWaitSecs;
+    }
+
+    public synchronized int getMaxWaitSecs() {
+        return maxWaitSecs;
+    }
+
+    /**
+     * Changes the bounds of the recommended wait, e.g. to let queued snapshots through faster
+     * while HANA is known to be idle. The wait is recalculated right away.
+     *
+     * @param newMinWaitSecs - shortest wait, at least 0
+     * @param newMaxWaitSecs - longest wait, at least newMinWaitSecs; also the wait until samples are available
+     */
+    public synchronized void setWaitBounds(int newMinWaitSecs, int newMaxWaitSecs) {
+        if (newMinWaitSecs < 0 || newMaxWaitSecs < newMinWaitSecs) {
+            throw new IllegalArgumentException(MessageFormat.format("Invalid wait bounds {0} - {1} seconds", newMinWaitSecs, newMaxWaitSecs));
+        }
+        minWaitSecs = newMinWaitSecs;
+        maxWaitSecs = newMaxWaitSecs;
+        if (ringCount > 0) {
+            recalculate();
+        } else {
+            recommendedWaitSecs = maxWaitSecs;
+        }
+        logger.info(MessageFormat.format("Wait bounds for {0} set to {1} - {2} seconds, wait is {3} seconds", target, minWaitSecs, maxWaitSecs, recommendedWaitSecs));
+    }
+
+    /**
+     * Takes one sample. Sampling is skipped until the agent has been authenticated
+     * once, and whenever HANA is unavailable.
+     */
+    void sample() {
+        HanaConnection sapConnection;
+        try {
+            sapConnection = HanaConnections.newConnection();
+        } catch (Exception e) {
+            logger.error("HANA sampling failed", e);
+            return;
+        }
+        if (!sapConnection.connectForMonitoring()) {
+            logger.debug("Skipping HANA sample for " + target + ": not connected");
+            return;
+        }
+        try {
+            record(sapConnection.sapStatistics());
+        } catch (SQLException e) {
+            logger.error("HANA sampling failed for " + target, e);
+        } catch (RuntimeException e) {
+            logger.error("HANA sampling failed for " + target, e);
+        } finally {
+            sapConnection.disconnect();
+        }
+    }
+
+    synchronized void record(HanaStatistics statistics) {
+        ring[ringIndex] = statistics;
+        ringIndex = (ringIndex + 1) % RING_SIZE;
+        ringCount = Math.min(ringCount + 1, RING_SIZE);
+        recalculate();
+    }
+
+    private void recalculate() {
+        long savepointMaxMicros = 0;
+        long snapshotMaxSecs = 0;
+        double writeBusy = 0;
+        HanaStatistics previous = null;
+        // Walk the ring from oldest to newest
+        for (int i = 0; i < ringCount; i++) {
+            HanaStatistics current = ring[(ringIndex - ringCount + i + RING_SIZE) % RING_SIZE];
+            savepointMaxMicros = Math.max(savepointMaxMicros, current.getSavepointMaxMicros());
+            snapshotMaxSecs = Math.max(snapshotMaxSecs, current.getSnapshotMaxSecs());
+            if (previous != null) {
+                writeBusy = Math.max(writeBusy, current.getWriteBusyFraction(previous));
+            }
+            previous = current;
+        }
+
+        long waitSecs = (long) Math.ceil(2 * (1 + writeBusy) * savepointMaxMicros / 1000000.0) + WAIT_SAFETY_SECS;
+        recommendedWaitSecs = (int) Math.max(minWaitSecs, Math.min(maxWaitSecs, waitSecs));
+        if (snapshotMaxSecs > 0) {
+            long timeoutSecs = 2 * snapshotMaxSecs + recommendedWaitSecs;
+            recommendedTimeoutSecs = (int) Math.max(MIN_TIMEOUT_SECS, Math.min(MAX_TIMEOUT_SECS, timeoutSecs));
+        }
+        logger.debug(MessageFormat.format("HANA sample for {0}: longest savepoint {1} ms, write busy {2}, longest snapshot {3} s -> wait {4} s, timeout {5} s",
+                target, savepointMaxMicros / 1000, writeBusy, snapshotMaxSecs, recommendedWaitSecs, recommendedTimeoutSecs));
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+/**
+ * One sample of the HANA monitoring views used to tune the snapshot wait and timeout.
+ */
+public class HanaStatistics {
+    private final long timestampMillis;
+    private final long savepointMaxMicros;
+    private final long snapshotMaxSecs;
+    private final long dataWriteMicros;
+
+    /**
+     * @param timestampMillis - time the sample was taken
+     * @param savepointMaxMicros - longest of the recent savepoints (M_SAVEPOINTS)
+     * @param snapshotMaxSecs - longest prepare to close of the recent data snapshots (M_BACKUP_CATALOG)
+     * @param dataWriteMicros - time spent writing to the data volumes since startup (M_VOLUME_IO_TOTAL_STATISTICS)
+     */
+    public HanaStatistics(long timestampMillis, long savepointMaxMicros, long snapshotMaxSecs, long dataWriteMicros) {
+        this.timestampMillis = timestampMillis;
+        this.savepointMaxMicros = savepointMaxMicros;
+        this.snapshotMaxSecs = snapshotMaxSecs;
+        this.dataWriteMicros = dataWriteMicros;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public long getSavepointMaxMicros() {
+        return savepointMaxMicros;
+    }
+
+    public long getSnapshotMaxSecs() {
+        return snapshotMaxSecs;
+    }
+
+    public long getDataWriteMicros() {
+        return dataWriteMicros;
+    }
+
+    /**
+     * @param previous - earlier sample
+     * @return fraction of the time between the samples the data volumes spent writing, between 0 and 1
+     */
+    public double getWriteBusyFraction(HanaStatistics previous) {
+        long elapsedMicros = (timestampMillis - previous.timestampMillis) * 1000L;
+        long writeMicros = dataWriteMicros - previous.dataWriteMicros;
+        if (elapsedMicros <= 0 || writeMicros < 0) {
+            // Counters are reset when HANA restarts
+            return 0;
+        }
+        return Math.min(1.0, (double) writeMicros / elapsedMicros);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+
+/**
+ * A HANA data snapshot in prepared state and the storage snapshots taken while it is prepared.
+ *
+ * A single pre-snapshot task prepares a snapshot for one storage snapshot. A batch of
+ * pre-snapshot tasks shares one prepared snapshot, which is closed once the post-snapshot
+ * tasks of all its storage snapshots have arrived. The post-snapshot tasks that arrived
+ * earlier wait for that close and share its outcome.
+ *
+ * The HANA snapshot is closed only once: whoever closes it, the last post-snapshot task or
+ * the expiry of the snapshot, has to win beginClose() first. If a storage snapshot of a batch
+ * is never posted, the tasks posted for the others stay active until the snapshot expires,
+ * and then fail with it: HANA closes the snapshot as unsuccessful.
+ */
+public class PreparedSnapshot {
+
+    public enum State {
+        PREPARED, CLOSING, CLOSED
+    }
+
+    // Length of EXTERNAL_BACKUP_ID in the HANA backup catalog
+    static final int MAX_EXTERNAL_ID_LENGTH = 64;
+    private static final int EXTERNAL_ID_HASH_LENGTH = 16;
+
+    private final String backupId;
+    private final long preparedAtSecs;
+    private final int timeoutSecs;
+    private final long expiresAtMillis;
+    private final Set<String> snapshotNames;
+    private final Set<String> postedNames = Sets.newHashSet();
+    private final List<SnapshotTask> postedTasks = Lists.newArrayList();
+    private State state = State.PREPARED;
+
+    /**
+     * @param backupId - HANA backup id of the snapshot
+     * @param snapshotNames - names of the storage snapshots taken while it is prepared
+     * @param timeoutSecs - seconds the snapshot may stay prepared before it is closed as failed
+     */
+    public PreparedSnapshot(String backupId, Collection<String> snapshotNames, int timeoutSecs) {
+        long nowMillis = AgentClock.get().currentTimeMillis();
+        this.backupId = backupId;
+        this.preparedAtSecs = nowMillis / 1000L;
+        this.timeoutSecs = timeoutSecs;
+        this.expiresAtMillis = nowMillis + TimeUnit.SECONDS.toMillis(timeoutSecs);
+        this.snapshotNames = ImmutableSet.copyOf(snapshotNames);
+    }
+
+    public String getBackupId() {
+        return backupId;
+    }
+
+    /**
+     * @return time the snapshot was prepared, in seconds since the epoch
+     */
+    public long getPreparedAtSecs() {
+        return preparedAtSecs;
+    }
+
+    /**
+     * @return seconds the snapshot may stay prepared, fixed when it was prepared
+     */
+    public int getTimeoutSecs() {
+        return timeoutSecs;
+    }
+
+    /**
+     * The ledger and the snapshot pipeline both expire the snapshot by this deadline, so a
+     * timeout tuned while the snapshot is prepared cannot make them disagree.
+     *
+     * @return time after which the snapshot may be closed as failed, in milliseconds since the epoch
+     */
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * @return true if the snapshot has outlived its timeout
+     */
+    public boolean isExpired() {
+        return AgentClock.get().currentTimeMillis() >= expiresAtMillis;
+    }
+
+    public Set<String> getSnapshotNames() {
+        return snapshotNames;
+    }
+
+    /**
+     * @return the names of the storage snapshots, identifying the prepared snapshot in logs
+     */
+    public String getLabel() {
+        return Joiner.on(',').join(snapshotNames);
+    }
+
+    /**
+     * The label of a batch can exceed the EXTERNAL_BACKUP_ID column of the HANA backup
+     * catalog. A label that is too long is cut, and a hash of the whole label is appended so
+     * the id stays unique. The volumes of the storage snapshots are tagged with the backup id
+     * either way, see HanaMetadataProvider.tagVolumes().
+     *
+     * @return external id recorded in the HANA backup catalog when the snapshot is confirmed
+     */
+    public String getExternalId() {
+        String label = getLabel();
+        if (label.length() <= MAX_EXTERNAL_ID_LENGTH) {
+            return label;
+        }
+        String hash = Hashing.sha256().hashString(label, StandardCharsets.UTF_8).toString().substring(0, EXTERNAL_ID_HASH_LENGTH);
+        return label.substring(0, MAX_EXTERNAL_ID_LENGTH - EXTERNAL_ID_HASH_LENGTH - 1) + "~" + hash;
+    }
+
+    /**
+     * Records the post-snapshot task of one storage snapshot.
+     *
+     * @param postTask - post-snapshot task of the storage snapshot
+     * @return true if all storage snapshots have been posted and the HANA snapshot can be closed
+     */
+    public synchronized boolean markPosted(SnapshotTask postTask) {
+        postedNames.add(postTask.getSnapshotName());
+        postedTasks.add(postTask);
+        return postedNames.containsAll(snapshotNames);
+    }
+
+    /**
+     * @return the post-snapshot tasks recorded so far, in arrival order
+     */
+    public synchronized List<SnapshotTask> getPostedTasks() {
+        return ImmutableList.copyOf(postedTasks);
+    }
+
+    /**
+     * Claims the close of the HANA snapshot.
+     *
+     * @return true if the caller must close the snapshot and report with endClose(), false if
+     *         the snapshot is being closed or has been closed already
+     */
+    public synchronized boolean beginClose() {
+        if (state != State.PREPARED) {
+            return false;
+        }
+        state = State.CLOSING;
+        return true;
+    }
+
+    /**
+     * @param closed - true if HANA closed the snapshot, false if the close failed and the
+     *                 snapshot is still prepared
+     */
+    public synchronized void endClose(boolean closed) {
+        state = closed ? State.CLOSED : State.PREPARED;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return backupId + "," + preparedAtSecs;
+    }
+}
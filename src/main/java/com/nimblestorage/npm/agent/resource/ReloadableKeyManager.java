@@ -0,0 +1,144 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * Server key manager whose key and certificate can be replaced while the server is running.
+ *
+ * Each handshake picks the credentials current at its start. The alias handed out names the
+ * generation of the credentials, so a handshake that spans a replacement still gets a key and
+ * certificate chain that belong together. Established sessions are not affected by a replacement.
+ */
+public class ReloadableKeyManager extends X509ExtendedKeyManager {
+    private static final char GENERATION_SEPARATOR = '#';
+
+    private static final class Credentials {
+        private final String alias;
+        private final PrivateKey privateKey;
+        private final X509Certificate[] chain;
+
+        private Credentials(String alias, PrivateKey privateKey, X509Certificate[] chain) {
+            this.alias = alias;
+            this.privateKey = privateKey;
+            this.chain = chain;
+        }
+    }
+
+    private final String alias;
+    private long generation = 0;
+    private volatile Credentials current = null;
+    private volatile Credentials previous = null;
+
+    /**
+     * @param alias - alias of the server certificate in the keystore
+     */
+    public ReloadableKeyManager(String alias) {
+        this.alias = alias;
+    }
+
+    /**
+     * Replaces the server credentials for all handshakes started from now on.
+     *
+     * @param privateKey - private key
+     * @param chain - certificate chain, starting with the server certificate
+     * @return false if the credentials are the ones already in use
+     */
+    public synchronized boolean update(PrivateKey privateKey, X509Certificate[] chain) {
+        Credentials active = current;
+        if (active != null && active.chain[0].equals(chain[0]) && active.privateKey.equals(privateKey)) {
+            return false;
+        }
+        generation++;
+        previous = active;
+        current = new Credentials(alias + GENERATION_SEPARATOR + generation, privateKey, chain.clone());
+        return true;
+    }
+
+    /**
+     * @return the server certificate in use, or null if none has been loaded
+     */
+    public X509Certificate getCertificate() {
+        Credentials active = current;
+        return active == null ? null : active.chain[0];
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return chooseAlias(keyType);
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        return chooseAlias(keyType);
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        String chosen = chooseAlias(keyType);
+        return chosen == null ? null : new String[] { chosen };
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String requestedAlias) {
+        Credentials credentials = find(requestedAlias);
+        return credentials == null ? null : credentials.chain.clone();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String requestedAlias) {
+        Credentials credentials = find(requestedAlias);
+        return credentials == null ? null : credentials.privateKey;
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        return null;
+    }
+
+    private String chooseAlias(String keyType) {
+        Credentials active = current;
+        if (active == null || keyType == null) {
+            return null;
+        }
+        // Only the key exchanges signed with the server key (RSA, EC) are served, not static ECDH
+        String keyAlgorithm = active.chain[0].getPublicKey().getAlgorithm();
+        if ("ECDSA".equals(keyAlgorithm)) {
+            keyAlgorithm = SslUtil.EC;
+        }
+        if (keyType.equals(keyAlgorithm)) {
+            return active.alias;
+        }
+        return null;
+    }
+
+    private Credentials find(String requestedAlias) {
+        Credentials active = current;
+        if (active != null && active.alias.equals(requestedAlias)) {
+            return active;
+        }
+        Credentials replaced = previous;
+        if (replaced != null && replaced.alias.equals(requestedAlias)) {
+            return replaced;
+        }
+        return null;
+    }
+}
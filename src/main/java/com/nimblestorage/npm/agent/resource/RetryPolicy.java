@@ -0,0 +1,89 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Random;
+
+/**
+ * Classifies SAP HANA errors and computes jittered exponential backoff delays
+ * for retrying transient failures.
+ */
+public class RetryPolicy {
+    // SQLSTATE class 08 - connection exception
+    private static final String CONNECTION_SQL_STATE_CLASS = "08";
+    // HANA JDBC driver: connection failed, connection lost
+    private static final int HANA_CONNECTION_FAILED = -10709;
+    private static final int HANA_CONNECTION_LOST = -10807;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Full jitter backoff: a random delay between 0 and min(maxDelay, baseDelay * 2^attempt).
+     *
+     * @param attempt - zero based number of the attempt that just failed
+     * @return delay in milliseconds before the next attempt
+     */
+    public long backoffMillis(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt, 16);
+        ceiling = Math.min(maxDelayMillis, ceiling);
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Other transient errors, e.g. a rolled back transaction, come from HANA itself and do not count.
+     *
+     * @param e - exception raised by the driver
+     * @return true if the error means HANA could not be reached or did not answer in time, as opposed to HANA rejecting the request
+     */
+    public static boolean isUnavailable(SQLException e) {
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLTimeoutException
+                || e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException) {
+            return true;
+        }
+        String sqlState = e.getSQLState();
+        if (sqlState != null && sqlState.startsWith(CONNECTION_SQL_STATE_CLASS)) {
+            return true;
+        }
+        return e.getErrorCode() == HANA_CONNECTION_FAILED || e.getErrorCode() == HANA_CONNECTION_LOST;
+    }
+
+    /**
+     * Timeouts are not retried: each attempt would hold the calling thread for the whole timeout again.
+     *
+     * @param e - exception raised by the driver
+     * @return true if the failed call is worth retrying
+     */
+    public static boolean isRetryable(SQLException e) {
+        return isUnavailable(e) && !(e instanceof SQLTimeoutException);
+    }
+
+    /**
+     * A transient connection error leaves the connection usable, so the statement can be sent
+     * again on it. Other connection errors need a new connection.
+     *
+     * @param e - exception raised by the driver
+     * @return true if the failed statement is worth retrying on the same connection
+     */
+    public static boolean isStatementRetryable(SQLException e) {
+        return e instanceof SQLTransientConnectionException;
+    }
+}
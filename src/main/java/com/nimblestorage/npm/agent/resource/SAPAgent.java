@@ -3,29 +3,26 @@
  */
 package com.nimblestorage.npm.agent.resource;
 
-import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
 // NOTE: The environment variable SAP_JDBC_DRIVER must be set on the host machine
 // in order for this to work.  It must point to the local instance of ngdbc.jar.
 
-public class SAPAgent {
+public class SAPAgent implements HanaConnection {
     private static final Logger logger = Logger.getLogger(SAPAgent.class);
     private Connection sapConnect = null;
     private static final String SAP_TYPE_NAME = "SAP";
@@ -35,14 +32,43 @@ public class SAPAgent {
     private static final String SNAPSHOT_PREP_COMMAND = "BACKUP DATA FOR FULL SYSTEM CREATE SNAPSHOT";
     private static final String SNAPSHOT_POST_COMMAND = "BACKUP DATA FOR FULL SYSTEM CLOSE SNAPSHOT BACKUP_ID";
     private static final String GET_BACKUP_ID_COMMAND = "SELECT BACKUP_ID FROM M_BACKUP_CATALOG WHERE STATE_NAME='prepared'";
+    private static final String SAVEPOINT_STATISTICS_QUERY = "SELECT MAX(DURATION) AS MAX_DURATION "
+            + "FROM (SELECT TOP 20 DURATION FROM M_SAVEPOINTS ORDER BY START_TIME DESC)";
+    private static final String SNAPSHOT_STATISTICS_QUERY = "SELECT MAX(SECONDS_BETWEEN(SYS_START_TIME, SYS_END_TIME)) AS MAX_DURATION "
+            + "FROM (SELECT TOP 20 SYS_START_TIME, SYS_END_TIME FROM M_BACKUP_CATALOG "
+            + "WHERE ENTRY_TYPE_NAME = 'data snapshot' AND STATE_NAME = 'successful' ORDER BY SYS_START_TIME DESC)";
+    private static final String DATABASE_QUERY = "SELECT SYSTEM_ID, DATABASE_NAME, VERSION FROM M_DATABASE";
+    private static final String LOG_POSITION_QUERY = "SELECT MAX(MAX_POSITION) AS LOG_POSITION FROM M_LOG_SEGMENTS";
+    private static final String LANDSCAPE_QUERY = "SELECT HOST, INDEXSERVER_ACTUAL_ROLE FROM M_LANDSCAPE_HOST_CONFIGURATION ORDER BY HOST";
+    private static final String VOLUME_IO_STATISTICS_QUERY = "SELECT SUM(TOTAL_WRITE_TIME) AS WRITE_TIME "
+            + "FROM M_VOLUME_IO_TOTAL_STATISTICS WHERE TYPE = 'DATA'";
+    // HANA JDBC connect property, in milliseconds
+    private static final String CONNECT_TIMEOUT_PROPERTY = "connectTimeout";
+    // HANA JDBC connect property, hdbuserstore key with the credentials
+    private static final String USERSTORE_KEY_PROPERTY = "key";
+
+    private static final Pattern BACKUP_ID_PATTERN = Pattern.compile("\\d+");
+    private static final RetryPolicy connectRetryPolicy = new RetryPolicy(3, 500, 4000);
+    private static final RetryPolicy statementRetryPolicy = new RetryPolicy(3, 500, 4000);
+    // Set once HANA rejects the configured monitoring credentials, so they are not retried until restart
+    private static volatile boolean monitoringCredentialsRejected = false;
 
     private String sapDbIp;
     private String sapDbInstance;
     private String sapAuthentication = null;
+    private String unavailableReason = null;
+    private final int loginTimeoutSecs;
+    private final int queryTimeoutSecs;
+    private final CircuitBreaker circuitBreaker;
 
     public SAPAgent() {
         // Get configuration
-        readConfig();
+        AgentConfig config = AgentConfig.getInstance();
+        sapDbIp = config.getHostIp() + ":" + config.getPort();
+        sapDbInstance = config.getInstanceName();
+        loginTimeoutSecs = config.getLoginTimeoutSecs();
+        queryTimeoutSecs = config.getQueryTimeoutSecs();
+        circuitBreaker = CircuitBreaker.forTarget(getTarget());
         // Verify that the $SAP_JDBC_DRIVER environment variable has been set
         if (System.getenv(SAP_DRIVER_ENV_VAR) == null) {
             throw new IllegalStateException(SAP_DRIVER_ENV_VAR + " is not set. It must contain the path to ngdbc.jar.");
@@ -52,13 +78,15 @@ public class SAPAgent {
     /**
      * Performs the SAP pre-snapshot task.
      *
+     * @param waitSecs - seconds to wait for HANA to write the snapshot before committing
      * @return backupId - String with the backup Id. null = error.
      * @throws SQLException
      */
-    public String sapPreSnapshot() throws SQLException {
+    @Override
+    public String sapPreSnapshot(int waitSecs) throws SQLException {
         String backupId = null;
         if (sapConnect != null) {
-            try (Statement statement = sapConnect.createStatement()) {
+            try (Statement statement = createStatement()) {
                 statement.executeUpdate(SNAPSHOT_PREP_COMMAND);
                 ResultSet rs = statement.executeQuery(GET_BACKUP_ID_COMMAND);
                 while (rs.next()) {
@@ -66,15 +94,17 @@ public class SAPAgent {
                     logger.info("sapPreSnapshot BACKUP_ID = " + backupId);
                 }
                 try {
-                    logger.info("sapPreSnapshot: Sleeping for 60 seconds...");
-                    Thread.sleep(TimeUnit.SECONDS.toMillis(60));
+                    logger.info("sapPreSnapshot: Sleeping for " + waitSecs + " seconds...");
+                    AgentClock.get().sleep(TimeUnit.SECONDS.toMillis(waitSecs));
                 } catch (InterruptedException e) {
                     logger.error("sapPreSnapshot " + e.getMessage());
                 }
                 sapConnect.commit();
+                circuitBreaker.recordSuccess();
                 return backupId;
             } catch (SQLException e) {
                 logger.error("sapPreSnapshot: Failed to prepare for snapshot", e);
+                recordOutcome(e);
                 throw e;
             } finally {
                 try {
@@ -89,33 +119,46 @@ public class SAPAgent {
     }
 
     /**
-     * Performs the SAP post-snapshot task.
+     * Performs the SAP post-snapshot task. Transient connection errors are retried on the
+     * same connection with jittered exponential backoff, so a network blip does not turn a
+     * successful backup into a failed one.
      *
-     * @return retVal - Integer return code: -1 = no connection,      -2 = error,
-     *                                        0 = success
-     * @throws SQLException
+     * @throws SQLException if HANA did not close the snapshot
      */
+    @Override
     public void sapPostSnapshot(Boolean backupSuccess, String backupId, String snapId) throws SQLException {
         if (sapConnect != null) {
+            // BACKUP DATA statements take no parameters, so the values are checked and quoted here
+            if (backupId == null || !BACKUP_ID_PATTERN.matcher(backupId).matches()) {
+                throw new SQLException("Invalid SAP HANA backup id " + backupId);
+            }
             String postCmd = SNAPSHOT_POST_COMMAND + " " + backupId;
             if (backupSuccess) {
-                postCmd = postCmd + " SUCCESSFUL '" + snapId + "'";
+                postCmd = postCmd + " SUCCESSFUL '" + Strings.nullToEmpty(snapId).replace("'", "''") + "'";
             } else {
                 postCmd = postCmd + " UNSUCCESSFUL 'HANA BACKUP DEMO failed to create Nimble snapshot'";
             }
             logger.info("sapPostSnapshot Query: " + postCmd + "\n");
-            try (Statement statement = sapConnect.createStatement()) {
-                Integer result = statement.executeUpdate(postCmd);
-                logger.info("sapPostSnapshot Result: " + result.toString());
-                sapConnect.commit();
-            } catch (SQLException e) {
-                logger.error("sapPostSnapshot ERROR: ", e);
-                throw e;
-            } finally {
+            int maxAttempts = statementRetryPolicy.getMaxAttempts();
+            for (int attempt = 0; ; attempt++) {
                 try {
-                    sapConnect.rollback();
-                } catch (SQLException e1) {
-                    logger.error("sapPostSnapshot ERROR: rollback failed", e1);
+                    executePostCommand(postCmd);
+                    circuitBreaker.recordSuccess();
+                    return;
+                } catch (SQLException e) {
+                    if (!RetryPolicy.isStatementRetryable(e) || attempt == maxAttempts - 1) {
+                        logger.error("sapPostSnapshot ERROR: ", e);
+                        recordOutcome(e);
+                        throw e;
+                    }
+                    logger.warn("sapPostSnapshot - transient failure: attempt " + (attempt + 1) + " of " + maxAttempts, e);
+                    try {
+                        AgentClock.get().sleep(statementRetryPolicy.backoffMillis(attempt));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        recordOutcome(e);
+                        throw e;
+                    }
                 }
             }
         } else {
@@ -123,6 +166,113 @@ public class SAPAgent {
         }
     }
 
+    private void executePostCommand(String postCmd) throws SQLException {
+        try (Statement statement = createStatement()) {
+            Integer result = statement.executeUpdate(postCmd);
+            logger.info("sapPostSnapshot Result: " + result.toString());
+            sapConnect.commit();
+        } finally {
+            try {
+                sapConnect.rollback();
+            } catch (SQLException e1) {
+                logger.error("sapPostSnapshot ERROR: rollback failed", e1);
+            }
+        }
+    }
+
+    /**
+     * Reads the HANA monitoring views used to tune the snapshot wait and timeout.
+     * All queries are aggregates over a bounded number of rows.
+     *
+     * @return the statistics sample
+     * @throws SQLException
+     */
+    @Override
+    public HanaStatistics sapStatistics() throws SQLException {
+        if (sapConnect == null) {
+            throw new IllegalStateException("sapConnect is null. SAP connection must be established first");
+        }
+        try (Statement statement = createStatement()) {
+            long savepointMaxMicros = 0;
+            try (ResultSet rs = statement.executeQuery(SAVEPOINT_STATISTICS_QUERY)) {
+                if (rs.next()) {
+                    savepointMaxMicros = rs.getLong("MAX_DURATION");
+                }
+            }
+            long snapshotMaxSecs = 0;
+            try (ResultSet rs = statement.executeQuery(SNAPSHOT_STATISTICS_QUERY)) {
+                if (rs.next()) {
+                    snapshotMaxSecs = rs.getLong("MAX_DURATION");
+                }
+            }
+            long writeMicros = 0;
+            try (ResultSet rs = statement.executeQuery(VOLUME_IO_STATISTICS_QUERY)) {
+                if (rs.next()) {
+                    writeMicros = rs.getLong("WRITE_TIME");
+                }
+            }
+            circuitBreaker.recordSuccess();
+            return new HanaStatistics(AgentClock.get().currentTimeMillis(), savepointMaxMicros, snapshotMaxSecs, writeMicros);
+        } catch (SQLException e) {
+            recordOutcome(e);
+            throw e;
+        } finally {
+            try {
+                sapConnect.rollback();
+            } catch (SQLException e1) {
+                logger.error("sapStatistics ERROR: rollback failed.", e1);
+            }
+        }
+    }
+
+    /**
+     * Reads the HANA metadata attached to volume snapshots.
+     *
+     * @return the metadata
+     * @throws SQLException
+     */
+    @Override
+    public HanaMetadata sapMetadata() throws SQLException {
+        if (sapConnect == null) {
+            throw new IllegalStateException("sapConnect is null. SAP connection must be established first");
+        }
+        try (Statement statement = createStatement()) {
+            String sid = null;
+            String databaseName = null;
+            String version = null;
+            try (ResultSet rs = statement.executeQuery(DATABASE_QUERY)) {
+                if (rs.next()) {
+                    sid = rs.getString("SYSTEM_ID");
+                    databaseName = rs.getString("DATABASE_NAME");
+                    version = rs.getString("VERSION");
+                }
+            }
+            String logPosition = null;
+            try (ResultSet rs = statement.executeQuery(LOG_POSITION_QUERY)) {
+                if (rs.next()) {
+                    logPosition = rs.getString("LOG_POSITION");
+                }
+            }
+            List<String> hosts = Lists.newArrayList();
+            try (ResultSet rs = statement.executeQuery(LANDSCAPE_QUERY)) {
+                while (rs.next()) {
+                    hosts.add(rs.getString("HOST") + ":" + rs.getString("INDEXSERVER_ACTUAL_ROLE"));
+                }
+            }
+            circuitBreaker.recordSuccess();
+            return new HanaMetadata(sid, databaseName, version, Joiner.on(',').join(hosts), logPosition, AgentClock.get().currentTimeMillis());
+        } catch (SQLException e) {
+            recordOutcome(e);
+            throw e;
+        } finally {
+            try {
+                sapConnect.rollback();
+            } catch (SQLException e1) {
+                logger.error("sapMetadata ERROR: rollback failed.", e1);
+            }
+        }
+    }
+
     /**
      * Tests the SAP database connection. Note that this ONLY for test
      * and does not handle the database connection rigorously.
@@ -153,6 +303,7 @@ public class SAPAgent {
         return result;
     }
 
+    @Override
     public Boolean sapAuthenticate(String authVal) {
         Boolean authorized = false;
         if (sapAuthentication != null && sapConnect != null) {
@@ -163,6 +314,7 @@ public class SAPAgent {
         return authorized;
     }
 
+    @Override
     public boolean isConnected() {
         if (sapConnect == null) {
             return false;
@@ -170,18 +322,127 @@ public class SAPAgent {
         return true;
     }
 
+    /**
+     * @return the reason the last connection attempt could not reach HANA, null if HANA was reachable
+     */
+    @Override
+    public String getUnavailableReason() {
+        return unavailableReason;
+    }
+
+    /**
+     * @return the HANA target this agent connects to, in the form host:port/instance
+     */
+    @Override
+    public String getTarget() {
+        return AgentConfig.getInstance().getTarget();
+    }
+
+    /**
+     * Connects to HANA unless the circuit breaker for the target is open. Connection
+     * failures caused by HANA being unreachable are retried with jittered exponential
+     * backoff; if HANA still cannot be reached getUnavailableReason() explains why.
+     */
+    @Override
     public void connect(String dbUser, String dbPass, String encodedAuthStr) {
-        if (sapConnect == null) {
-            sapConnect = connectDb(SAP_TYPE_NAME, SAP_DRIVER_CLASS, sapDbIp, sapDbInstance, dbUser, dbPass);
-            if (sapConnect != null) {
+        connect(dbUser, dbPass, null, encodedAuthStr);
+    }
+
+    private void connect(String dbUser, String dbPass, String userstoreKey, String encodedAuthStr) {
+        if (sapConnect != null) {
+            return;
+        }
+        unavailableReason = null;
+        if (!circuitBreaker.tryAcquire()) {
+            unavailableReason = circuitBreaker.describe();
+            logger.error("connect - rejected: " + unavailableReason);
+            return;
+        }
+        // A half-open breaker only allows a single probe attempt
+        int maxAttempts = circuitBreaker.getState() == CircuitBreaker.State.CLOSED ? connectRetryPolicy.getMaxAttempts() : 1;
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            try {
+                sapConnect = connectDb(SAP_TYPE_NAME, SAP_DRIVER_CLASS, sapDbIp, sapDbInstance, dbUser, dbPass, userstoreKey);
                 sapAuthentication = encodedAuthStr;
+                circuitBreaker.recordSuccess();
+                return;
+            } catch (SQLException e) {
+                logger.error("connect - failure: attempt " + (attempt + 1) + " of " + maxAttempts, e);
+                if (!RetryPolicy.isUnavailable(e)) {
+                    // HANA answered, e.g. invalid credentials
+                    circuitBreaker.recordSuccess();
+                    return;
+                }
+                if (!RetryPolicy.isRetryable(e) || attempt == maxAttempts - 1) {
+                    unavailableReason = "SAP HANA at " + getTarget() + " is unavailable: " + e.getMessage();
+                    circuitBreaker.recordFailure(e.getMessage());
+                    return;
+                }
+                try {
+                    AgentClock.get().sleep(connectRetryPolicy.backoffMillis(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    unavailableReason = "Interrupted while connecting to SAP HANA at " + getTarget();
+                    circuitBreaker.recordFailure(e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects for background monitoring with the monitoring credentials of the agent
+     * configuration, a user and password or an hdbuserstore key.
+     *
+     * @return true if connected, false if no monitoring credentials are configured, HANA
+     *         rejected them or is unavailable
+     */
+    @Override
+    public boolean connectForMonitoring() {
+        AgentConfig config = AgentConfig.getInstance();
+        if (!config.hasMonitoringCredentials() || monitoringCredentialsRejected) {
+            return false;
+        }
+        connect(config.getMonitoringUser(), config.getMonitoringPassword(), config.getMonitoringUserstoreKey(), null);
+        if (!isConnected() && unavailableReason == null) {
+            // HANA rejected the credentials, do not retry them and risk locking the user
+            logger.error("connectForMonitoring - SAP HANA rejected the monitoring credentials, background monitoring stops until the agent restarts");
+            monitoringCredentialsRejected = true;
+        }
+        return isConnected();
+    }
+
+    /**
+     * Validates the JDBC connection. A connection HANA has dropped, e.g. after its
+     * idle_connection_timeout, is replaced by a new one with the credentials of the
+     * request that opened the session. Monitoring sessions are not reconnected.
+     */
+    @Override
+    public boolean revalidate() {
+        if (sapConnect != null) {
+            try {
+                if (sapConnect.isValid(queryTimeoutSecs)) {
+                    return true;
+                }
+            } catch (SQLException e) {
+                logger.warn("revalidate - validation failed", e);
             }
+            logger.warn("revalidate - SAP HANA dropped the session, connecting again");
+            disconnect();
+            sapConnect = null;
         }
+        String[] credentials = RequestAuthenticator.getCredentials(sapAuthentication);
+        if (credentials == null) {
+            return false;
+        }
+        connect(credentials[0], credentials[1], sapAuthentication);
+        return isConnected();
     }
 
     /**
      * Closes the SAP database connection
      */
+    @Override
     public void disconnect() {
         if (sapConnect != null) {
             try {
@@ -197,69 +458,54 @@ public class SAPAgent {
      * Establishes a connection with the SAP database.
      *
      * @return connection - The JDBC connection object.
+     * @throws SQLException if the driver is missing or the connection could not be established
      */
-    private Connection connectDb(String dbType, String dbDriver, String dbIp, String dbName, String dbUser, String dbPass) {
+    private Connection connectDb(String dbType, String dbDriver, String dbIp, String dbName, String dbUser, String dbPass, String userstoreKey) throws SQLException {
         try {
             Class.forName(dbDriver);
         } catch (ClassNotFoundException e) {
             logger.error("connectDb: Where is your " + dbType + " JDBC Driver? Include in your library path!", e);
-            return null;
+            throw new SQLException(dbType + " JDBC driver " + dbDriver + " not found", e);
+        }
+        String connectStr = "jdbc:" + dbType.toLowerCase() + "://" + dbIp + "/" + dbName;
+        Properties properties = new Properties();
+        if (dbUser != null) {
+            properties.setProperty("user", dbUser);
+        }
+        if (dbPass != null) {
+            properties.setProperty("password", dbPass);
         }
-        Connection connection = null;
+        if (userstoreKey != null) {
+            properties.setProperty(USERSTORE_KEY_PROPERTY, userstoreKey);
+        }
+        properties.setProperty(CONNECT_TIMEOUT_PROPERTY, Long.toString(TimeUnit.SECONDS.toMillis(loginTimeoutSecs)));
+        DriverManager.setLoginTimeout(loginTimeoutSecs);
+        Connection connection = DriverManager.getConnection(connectStr, properties);
         try {
-            String connectStr = "jdbc:" + dbType.toLowerCase() + "://" + dbIp + "/" + dbName;
-            connection = DriverManager.getConnection(connectStr, dbUser, dbPass);
+            connection.setAutoCommit(false);
         } catch (SQLException e) {
-            logger.error("connectDb - failure: SQLException! Check output console!", e);
-            return null;
-        }
-        if (connection != null) {
-            try {
-                connection.setAutoCommit(false);
-            } catch (SQLException e) {
-                logger.error("connectDb - ERROR: failed to set autocommit to false!", e);
-            }
-        } else {
-            logger.error("connectDb - failure: did not connect to " + dbType);
+            logger.error("connectDb - ERROR: failed to set autocommit to false!", e);
         }
         return connection;
     }
 
-    private void readConfig() {
-        // Load config file
-        File fileConfig = null;
-        List<String> configLocations = Arrays.asList("./sap-hana-backup-agent-config.xml");
-        for (int i = 0; i < configLocations.size(); i++) {
-            fileConfig = new File(configLocations.get(i));
-            if (fileConfig.exists() && fileConfig.isFile()) {
-                //doPrint("readConfig - found file: " + configLocations.get(i) + "\n");
-                break;
-            } else {
-                fileConfig = null;
-            }
-        }
-        // Read XML
-        if (fileConfig != null) {
-            try {
-                DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-                Document doc = dBuilder.parse(fileConfig);
-                doc.getDocumentElement().normalize();
-                NodeList nList = doc.getElementsByTagName("sap_hana_backup_agent");
-                Node nNode = nList.item(0);
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element eElement = (Element) nNode;
-                    sapDbIp = eElement.getElementsByTagName("host_ip").item(0).getTextContent();
-                    String port = eElement.getElementsByTagName("port").item(0).getTextContent();
-                    sapDbIp = sapDbIp + ":" + port;
-                    sapDbInstance = eElement.getElementsByTagName("instance").item(0).getTextContent();
-                }
-            } catch (Exception e) {
-                logger.error("Failed to read config file", e);
-            }
+    private Statement createStatement() throws SQLException {
+        Statement statement = sapConnect.createStatement();
+        statement.setQueryTimeout(queryTimeoutSecs);
+        return statement;
+    }
+
+    /**
+     * Feeds the outcome of a failed statement to the circuit breaker. Errors returned
+     * by HANA itself still prove that HANA is reachable. A statement that timed out
+     * counts as a failure, so a HANA that accepts connections but hangs on statements
+     * opens the breaker too.
+     */
+    private void recordOutcome(SQLException e) {
+        if (RetryPolicy.isUnavailable(e)) {
+            circuitBreaker.recordFailure(e.getMessage());
         } else {
-            logger.error("Failed to find config file");
+            circuitBreaker.recordSuccess();
         }
-
     }
 }
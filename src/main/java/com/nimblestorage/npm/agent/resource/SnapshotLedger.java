@@ -0,0 +1,161 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps track of the HANA snapshots a target has prepared and not yet closed, and checks
+ * the invariants of the pre/post snapshot state machine while it runs:
+ * every prepared snapshot is closed exactly once, and none is left prepared.
+ *
+ * A snapshot whose close failed stays open in the ledger, so the expiry of prepared
+ * snapshots closes it even after its storage snapshots are no longer tracked.
+ */
+public class SnapshotLedger {
+    private static final Logger logger = Logger.getLogger(SnapshotLedger.class);
+    private static final ConcurrentMap<String, SnapshotLedger> ledgers = Maps.newConcurrentMap(); //target, ledger
+
+    private static final Comparator<PreparedSnapshot> PREPARED_ORDER = new Comparator<PreparedSnapshot>() {
+        @Override
+        public int compare(PreparedSnapshot first, PreparedSnapshot second) {
+            return Long.compare(first.getPreparedAtSecs(), second.getPreparedAtSecs());
+        }
+    };
+
+    private final String target;
+    private final Set<PreparedSnapshot> open = Sets.newConcurrentHashSet();
+    private final AtomicLong prepares = new AtomicLong();
+    private final AtomicLong closes = new AtomicLong();
+    private final AtomicLong failedCloses = new AtomicLong();
+    private final AtomicLong rejectedCloses = new AtomicLong();
+
+    SnapshotLedger(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @param target - HANA target in the form host:port/instance
+     * @return the ledger of the target
+     */
+    public static SnapshotLedger forTarget(String target) {
+        SnapshotLedger ledger = ledgers.get(target);
+        if (ledger == null) {
+            SnapshotLedger newLedger = new SnapshotLedger(target);
+            ledger = ledgers.putIfAbsent(target, newLedger);
+            if (ledger == null) {
+                ledger = newLedger;
+            }
+        }
+        return ledger;
+    }
+
+    /**
+     * Records a snapshot HANA has prepared.
+     *
+     * @param prepared - prepared snapshot
+     */
+    public void prepared(PreparedSnapshot prepared) {
+        if (!open.isEmpty()) {
+            logger.warn(MessageFormat.format("SAP HANA backup {0} prepared on {1} while {2} is still open", prepared.getBackupId(), target, open));
+        }
+        open.add(prepared);
+        prepares.incrementAndGet();
+    }
+
+    /**
+     * Claims the close of a prepared snapshot, see PreparedSnapshot.beginClose().
+     *
+     * @param prepared - prepared snapshot
+     * @return true if the caller must close the snapshot and report with endClose()
+     */
+    public boolean beginClose(PreparedSnapshot prepared) {
+        if (prepared.beginClose()) {
+            return true;
+        }
+        rejectedCloses.incrementAndGet();
+        logger.warn(MessageFormat.format("Not closing SAP HANA backup {0} on {1} again, it is {2}", prepared.getBackupId(), target, prepared.getState()));
+        return false;
+    }
+
+    /**
+     * Records the outcome of a close claimed with beginClose().
+     *
+     * @param prepared - prepared snapshot
+     * @param closed - true if HANA closed the snapshot
+     */
+    public void endClose(PreparedSnapshot prepared, boolean closed) {
+        prepared.endClose(closed);
+        if (!closed) {
+            failedCloses.incrementAndGet();
+            logger.error(MessageFormat.format("SAP HANA backup {0} on {1} is still prepared, it is closed when it expires", prepared.getBackupId(), target));
+            return;
+        }
+        closes.incrementAndGet();
+        if (!open.remove(prepared)) {
+            logger.error(MessageFormat.format("Invariant violated: SAP HANA backup {0} on {1} was closed but is not open", prepared.getBackupId(), target));
+        }
+    }
+
+    /**
+     * @return the snapshots prepared and not yet closed, oldest first
+     */
+    public List<PreparedSnapshot> getOpen() {
+        List<PreparedSnapshot> result = Lists.newArrayList(open);
+        Collections.sort(result, PREPARED_ORDER);
+        return result;
+    }
+
+    /**
+     * @return the open snapshots that have outlived the timeout they were prepared with, oldest first
+     */
+    public List<PreparedSnapshot> getExpired() {
+        List<PreparedSnapshot> expired = Lists.newArrayList();
+        for (PreparedSnapshot prepared : getOpen()) {
+            if (prepared.isExpired()) {
+                expired.add(prepared);
+            }
+        }
+        return expired;
+    }
+
+    public long getPrepares() {
+        return prepares.get();
+    }
+
+    public long getCloses() {
+        return closes.get();
+    }
+
+    public long getFailedCloses() {
+        return failedCloses.get();
+    }
+
+    /**
+     * @return attempts to close a snapshot that was being closed or closed already
+     */
+    public long getRejectedCloses() {
+        return rejectedCloses.get();
+    }
+
+    /**
+     * @return a summary of the counters, for logs
+     */
+    public String describe() {
+        return MessageFormat.format("{0}: {1} prepared, {2} closed, {3} failed closes, {4} rejected closes, {5} open",
+                target, prepares.get(), closes.get(), failedCloses.get(), rejectedCloses.get(), open.size());
+    }
+}
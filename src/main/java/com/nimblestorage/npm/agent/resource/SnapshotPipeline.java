@@ -0,0 +1,280 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+
+/**
+ * Schedules pre-snapshot tasks for a single SAP HANA target.
+ *
+ * HANA allows only one prepared data snapshot at a time. While a snapshot is prepared,
+ * further pre-snapshot tasks are queued in arrival order, and the next one is started as
+ * soon as the prepared snapshot is closed. A queued task keeps the HANA session it
+ * authenticated with; the prepare step revalidates it before use, as HANA may have dropped
+ * it while it sat idle. Queued tasks report their position and the estimated start time,
+ * as an absolute UTC time that stays meaningful between updates, in the task message.
+ *
+ * If the prepared snapshot is never closed, the next queued task is started once the
+ * prepared snapshot has outlived its timeout, so that it can close it as failed.
+ */
+public class SnapshotPipeline {
+    private static final Logger logger = Logger.getLogger(SnapshotPipeline.class);
+    private static final ConcurrentMap<String, SnapshotPipeline> pipelines = Maps.newConcurrentMap(); //target, pipeline
+
+    // Initial estimate of prepare -> close, before any cycle has been measured
+    private static final long DEFAULT_CYCLE_MILLIS = TimeUnit.SECONDS.toMillis(90);
+    // Weight of the latest cycle in the moving average
+    private static final double CYCLE_WEIGHT = 0.3;
+
+    private static class QueuedPrepare {
+        private final List<SnapshotTask> tasks;
+        private final Runnable prepare;
+        private final Runnable cancel;
+        private final int baseTimeoutSecs;
+
+        QueuedPrepare(List<SnapshotTask> tasks, Runnable prepare, Runnable cancel) {
+            this.tasks = tasks;
+            this.prepare = prepare;
+            this.cancel = cancel;
+            this.baseTimeoutSecs = tasks.get(0).getTimeout();
+        }
+
+        private void update(String message, int timeoutSecs) {
+            for (SnapshotTask task : tasks) {
+                task.setMessage(message);
+                task.setTimeout(timeoutSecs);
+            }
+        }
+
+        private void publish(String phase) {
+            for (SnapshotTask task : tasks) {
+                SnapshotTaskEvents.publish(task, phase);
+            }
+        }
+    }
+
+    private final String target;
+    private final Executor executor;
+    private final Deque<QueuedPrepare> queue = new ArrayDeque<QueuedPrepare>();
+    private boolean preparing = false;
+    private String preparedBackupId = null;
+    private long preparedDeadlineMillis = 0;
+    private long cycleStartMillis = 0;
+    private long averageCycleMillis = DEFAULT_CYCLE_MILLIS;
+    private Future<?> expiryCheck = null;
+
+    SnapshotPipeline(String target, Executor executor) {
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * @param target - HANA target in the form host:port/instance
+     * @param executor - executor that runs the prepare step of the tasks
+     * @return the pipeline shared by all pre-snapshot tasks for the target
+     */
+    public static SnapshotPipeline forTarget(String target, Executor executor) {
+        SnapshotPipeline pipeline = pipelines.get(target);
+        if (pipeline == null) {
+            SnapshotPipeline newPipeline = new SnapshotPipeline(target, executor);
+            pipeline = pipelines.putIfAbsent(target, newPipeline);
+            if (pipeline == null) {
+                pipeline = newPipeline;
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Starts the prepare step right away if HANA has no prepared snapshot, otherwise queues it.
+     * The prepare step must report back with prepared() or prepareFailed().
+     *
+     * @param tasks - pre-snapshot tasks, tasks cancelled while queued are removed from the list
+     * @param prepare - prepare step shared by the tasks
+     * @param cancel - runs instead of the prepare step if all tasks are cancelled while queued
+     */
+    public synchronized void submit(List<SnapshotTask> tasks, Runnable prepare, Runnable cancel) {
+        QueuedPrepare queued = new QueuedPrepare(tasks, prepare, cancel);
+        queue.add(queued);
+        startNext();
+        updateQueuedTasks();
+        if (queue.contains(queued)) {
+            logger.info(MessageFormat.format("{0} snapshot task(s) queued for {1}: {2} ahead", tasks.size(), target, queue.size() - 1));
+            queued.publish(SnapshotTaskEvents.QUEUED);
+        }
+    }
+
+    /**
+     * Removes queued pre-snapshot tasks, e.g. because they were deleted. A prepare step whose
+     * tasks have all been removed is dropped from the queue and its cancel step runs instead.
+     * Tasks whose prepare step has started are not affected.
+     *
+     * @param tasks - pre-snapshot tasks
+     * @return true if any of the tasks was queued
+     */
+    public boolean cancel(Collection<SnapshotTask> tasks) {
+        List<Runnable> cancelled = Lists.newArrayList();
+        boolean found = false;
+        synchronized (this) {
+            Iterator<QueuedPrepare> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                QueuedPrepare queued = iterator.next();
+                for (SnapshotTask task : tasks) {
+                    // Tasks are matched by identity, as a task is a request object with mutable state
+                    for (Iterator<SnapshotTask> queuedTasks = queued.tasks.iterator(); queuedTasks.hasNext();) {
+                        if (queuedTasks.next() == task) {
+                            queuedTasks.remove();
+                            found = true;
+                        }
+                    }
+                }
+                if (queued.tasks.isEmpty()) {
+                    iterator.remove();
+                    cancelled.add(queued.cancel);
+                }
+            }
+            if (found) {
+                logger.info(MessageFormat.format("Cancelled queued snapshot task(s) for {0}, {1} prepare(s) dropped", target, cancelled.size()));
+                updateQueuedTasks();
+            }
+        }
+        // The cancel steps release HANA sessions, which is done outside the lock
+        for (Runnable cancel : cancelled) {
+            cancel.run();
+        }
+        return found;
+    }
+
+    /**
+     * The prepare step committed: HANA now holds the snapshot in prepared state until it is closed.
+     *
+     * @param prepared - prepared snapshot, the next queued task starts once it expires at the latest
+     */
+    public synchronized void prepared(PreparedSnapshot prepared) {
+        preparing = false;
+        preparedBackupId = prepared.getBackupId();
+        if (expiryCheck != null) {
+            expiryCheck.cancel(false);
+        }
+        // The same deadline the ledger expires the snapshot by, see PreparedSnapshot.isExpired()
+        preparedDeadlineMillis = prepared.getExpiresAtMillis();
+        long delayMillis = Math.max(0, preparedDeadlineMillis - AgentClock.get().currentTimeMillis());
+        expiryCheck = AgentClock.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, delayMillis);
+        updateQueuedTasks();
+    }
+
+    /**
+     * The prepare step failed or did not report a backup id: HANA has no prepared snapshot
+     * from it that the agent could close.
+     */
+    public synchronized void prepareFailed() {
+        preparing = false;
+        startNext();
+        updateQueuedTasks();
+    }
+
+    /**
+     * HANA closed the prepared snapshot, as successful or as failed. Starts the next queued task.
+     * Not called when the close itself failed, as HANA still holds the snapshot then.
+     *
+     * @param backupId - HANA backup id of the closed snapshot
+     */
+    public synchronized void closed(String backupId) {
+        if (backupId == null || !backupId.equals(preparedBackupId)) {
+            return;
+        }
+        long cycleMillis = AgentClock.get().currentTimeMillis() - cycleStartMillis;
+        averageCycleMillis = (long) (CYCLE_WEIGHT * cycleMillis + (1 - CYCLE_WEIGHT) * averageCycleMillis);
+        preparedBackupId = null;
+        if (expiryCheck != null) {
+            expiryCheck.cancel(false);
+            expiryCheck = null;
+        }
+        startNext();
+        updateQueuedTasks();
+    }
+
+    /**
+     * @return number of pre-snapshot tasks waiting for HANA's prepared snapshot to be closed
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    private synchronized void expire() {
+        startNext();
+        updateQueuedTasks();
+    }
+
+    /**
+     * Starts the next queued task if HANA has no prepared snapshot, or if the prepared
+     * snapshot has outlived its timeout. In the latter case the started task closes it as failed.
+     */
+    private void startNext() {
+        if (preparing || queue.isEmpty()) {
+            return;
+        }
+        if (preparedBackupId != null) {
+            if (AgentClock.get().currentTimeMillis() < preparedDeadlineMillis) {
+                return;
+            }
+            logger.error(MessageFormat.format("SAP HANA backup {0} on {1} was not closed within its timeout, starting next queued task", preparedBackupId, target));
+        }
+        QueuedPrepare next = queue.poll();
+        preparing = true;
+        cycleStartMillis = AgentClock.get().currentTimeMillis();
+        next.update(null, next.baseTimeoutSecs);
+        logger.info(MessageFormat.format("Starting prepare of {0} snapshot task(s) on {1}", next.tasks.size(), target));
+        next.publish(SnapshotTaskEvents.PREPARING);
+        executor.execute(next.prepare);
+    }
+
+    /**
+     * Reports queue position and estimated start time of every queued task, and extends
+     * each task's timeout by its expected wait.
+     */
+    private void updateQueuedTasks() {
+        long now = AgentClock.get().currentTimeMillis();
+        long currentRemainingMillis = 0;
+        if (preparing || preparedBackupId != null) {
+            currentRemainingMillis = Math.max(0, cycleStartMillis + averageCycleMillis - now);
+        }
+        int position = 1;
+        for (QueuedPrepare queued : queue) {
+            long waitSecs = TimeUnit.MILLISECONDS.toSeconds(currentRemainingMillis + (position - 1) * averageCycleMillis);
+            queued.update(MessageFormat.format("Waiting for the prepared SAP HANA snapshot to be closed: queue position {0}, estimated start at {1}",
+                    position, formatTime(now + TimeUnit.SECONDS.toMillis(waitSecs))), (int) (queued.baseTimeoutSecs + waitSecs));
+            position++;
+        }
+    }
+
+    private static String formatTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
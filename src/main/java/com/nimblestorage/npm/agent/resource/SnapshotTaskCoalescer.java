@@ -0,0 +1,107 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTaskStatus;
+
+/**
+ * Coalesces pre and post snapshot requests for the same snapshot name.
+ *
+ * A request that arrives within the coalescing window of an earlier request for the
+ * same snapshot name and phase joins the earlier task: it gets the same task id and
+ * result instead of running the HANA commands a second time. Failed tasks are never
+ * joined, so a retry after a failure starts a new attempt. Requests only join once they
+ * have been authenticated against HANA.
+ */
+public class SnapshotTaskCoalescer {
+
+    public enum Phase {
+        PRE, POST
+    }
+
+    private static class Entry {
+        private final SnapshotTask task;
+        private final long createdMillis;
+
+        Entry(SnapshotTask task) {
+            this.task = task;
+            this.createdMillis = AgentClock.get().currentTimeMillis();
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> requests = Maps.newConcurrentMap(); //phase:snapName, entry
+    private final long windowMillis;
+
+    public SnapshotTaskCoalescer(int windowSecs) {
+        this.windowMillis = TimeUnit.SECONDS.toMillis(windowSecs);
+    }
+
+    /**
+     * Registers the task for its snapshot name and phase, unless a joinable task is already registered.
+     *
+     * @param phase - pre or post snapshot
+     * @param snapTask - task created for the authenticated request, with its id already assigned
+     * @return the earlier task to join, or null if snapTask was registered and must be executed
+     */
+    public SnapshotTask join(Phase phase, SnapshotTask snapTask) {
+        if (Strings.isNullOrEmpty(snapTask.getSnapshotName())) {
+            return null;
+        }
+        purgeExpired();
+        String key = key(phase, snapTask.getSnapshotName());
+        Entry entry = new Entry(snapTask);
+        while (true) {
+            Entry existing = requests.putIfAbsent(key, entry);
+            if (existing == null) {
+                return null;
+            }
+            if (isJoinable(existing)) {
+                return existing.task;
+            }
+            if (requests.replace(key, existing, entry)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stops coalescing requests into the task, e.g. once it has been deleted.
+     *
+     * @param taskId - id of the snapshot task
+     */
+    public void remove(String taskId) {
+        Iterator<Entry> it = requests.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().task.getId().equals(taskId)) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isJoinable(Entry entry) {
+        return entry.task.getStatus() != SnapshotTaskStatus.FAILED
+                && AgentClock.get().currentTimeMillis() - entry.createdMillis < windowMillis;
+    }
+
+    private void purgeExpired() {
+        long now = AgentClock.get().currentTimeMillis();
+        Iterator<Entry> it = requests.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().createdMillis >= windowMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String key(Phase phase, String snapshotName) {
+        return phase + ":" + snapshotName;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTaskEvent;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTaskStatus;
+
+/**
+ * Publishes snapshot task state transitions to the subscribers of the event stream.
+ */
+public class SnapshotTaskEvents {
+    private static final Logger logger = Logger.getLogger(SnapshotTaskEvents.class);
+
+    public static final String CURRENT = "current";
+    public static final String ACCEPTED = "accepted";
+    public static final String QUEUED = "queued";
+    public static final String PREPARING = "preparing";
+    public static final String PREPARED = "prepared";
+    public static final String POSTED = "posted";
+    public static final String CLOSING = "closing";
+    public static final String CLOSED = "closed";
+    public static final String FAILED = "failed";
+    public static final String EXPIRED = "expired";
+    public static final String DELETED = "deleted";
+
+    // Events kept per subscriber that has not consumed them yet
+    private static final int SUBSCRIBER_QUEUE_CAPACITY = 1000;
+
+    private static final Set<Subscription> subscriptions = new CopyOnWriteArraySet<Subscription>();
+    private static final ConcurrentMap<String, long[]> timings = Maps.newConcurrentMap(); //taskId, {accepted, last transition}
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Events for one subscriber, optionally limited to a single task.
+     */
+    public static class Subscription {
+        private final String taskId;
+        private final BlockingQueue<SnapshotTaskEvent> events = new LinkedBlockingQueue<SnapshotTaskEvent>(SUBSCRIBER_QUEUE_CAPACITY);
+
+        Subscription(String taskId) {
+            this.taskId = taskId;
+        }
+
+        /**
+         * @return the next event, or null if none was published within the timeout
+         */
+        public SnapshotTaskEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return events.poll(timeout, unit);
+        }
+
+        public void close() {
+            subscriptions.remove(this);
+        }
+
+        private boolean matches(SnapshotTaskEvent event) {
+            return taskId == null || taskId.equals(event.getTaskId());
+        }
+
+        private void offer(SnapshotTaskEvent event) {
+            if (!events.offer(event)) {
+                logger.error("Dropping event " + event.getSequence() + " for a subscriber that is not keeping up");
+            }
+        }
+    }
+
+    /**
+     * @param taskId - id of the task to follow, null to follow all tasks
+     * @return a subscription that must be closed once the subscriber disconnects
+     */
+    public static Subscription subscribe(String taskId) {
+        Subscription subscription = new Subscription(taskId);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Publishes the current state of the task as having entered the phase.
+     *
+     * @param task - snapshot task
+     * @param phase - phase the task entered
+     */
+    public static void publish(SnapshotTask task, String phase) {
+        long now = AgentClock.get().currentTimeMillis();
+        long[] taskTimings = timings.get(task.getId());
+        if (taskTimings == null) {
+            taskTimings = new long[] { now, now };
+            long[] existing = timings.putIfAbsent(task.getId(), taskTimings);
+            if (existing != null) {
+                taskTimings = existing;
+            }
+        }
+        long phaseMillis;
+        synchronized (taskTimings) {
+            phaseMillis = now - taskTimings[1];
+            taskTimings[1] = now;
+        }
+        SnapshotTaskEvent event = new SnapshotTaskEvent()
+                .withSequence(sequence.incrementAndGet())
+                .withTaskId(task.getId())
+                .withSnapshotName(task.getSnapshotName())
+                .withPhase(phase)
+                .withStatus(task.getStatus())
+                .withMessage(task.getMessage())
+                .withTimestamp(now)
+                .withElapsedMillis(now - taskTimings[0])
+                .withPhaseMillis(phaseMillis);
+        if (isFinal(event)) {
+            timings.remove(task.getId());
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(event)) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    /**
+     * @param event
+     * @return true if the task will not publish further events
+     */
+    public static boolean isFinal(SnapshotTaskEvent event) {
+        return event.getStatus() != SnapshotTaskStatus.ACTIVE || DELETED.equals(event.getPhase()) || EXPIRED.equals(event.getPhase());
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+
+/**
+ * Runs the HANA steps of snapshot tasks with a limit on how many run at the same time,
+ * and keeps track of which thread is working on which tasks, so that stuck tasks can be found.
+ *
+ * Prepare steps run on threads of this executor, post steps on the request thread. Both take
+ * a permit before they contact HANA; steps beyond the limit wait in arrival order. The limit
+ * can be changed while the agent runs.
+ */
+public class SnapshotTaskExecutor implements Executor {
+    private static final Logger logger = Logger.getLogger(SnapshotTaskExecutor.class);
+    private static final long IDLE_SECS = 60;
+
+    private static SnapshotTaskExecutor instance;
+
+    /**
+     * Snapshot tasks a thread is working on.
+     */
+    public static class RunningTasks {
+        private final Thread thread;
+        private final List<SnapshotTask> tasks;
+        private final long startMillis;
+
+        RunningTasks(Thread thread, Collection<SnapshotTask> tasks) {
+            this.thread = thread;
+            this.tasks = ImmutableList.copyOf(tasks);
+            this.startMillis = AgentClock.get().currentTimeMillis();
+        }
+
+        public Thread getThread() {
+            return thread;
+        }
+
+        public List<SnapshotTask> getTasks() {
+            return tasks;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+    }
+
+    /**
+     * Semaphore whose number of permits can be lowered while permits are held.
+     */
+    private static class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    // Prepare steps are serialized per HANA target by the snapshot pipeline, the permits bound them
+    private final ThreadPoolExecutor pool;
+    private final Permits permits;
+    private int maxConcurrentTasks;
+    private final ConcurrentMap<Thread, RunningTasks> running = Maps.newConcurrentMap();
+
+    SnapshotTaskExecutor(int maxConcurrentTasks) {
+        pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_SECS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("snapshot-task-%d").build());
+        permits = new Permits(maxConcurrentTasks);
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    public static synchronized SnapshotTaskExecutor getInstance() {
+        if (instance == null) {
+            instance = new SnapshotTaskExecutor(AgentConfig.getInstance().getMaxConcurrentTasks());
+        }
+        return instance;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * @param tasks - snapshot tasks the command works on
+     * @param command - command to run on an executor thread
+     * @return the command, recording the thread running it as working on the tasks
+     */
+    public Runnable tracked(final Collection<SnapshotTask> tasks, final Runnable command) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runTracked(tasks, command);
+            }
+        };
+    }
+
+    /**
+     * Runs the command on the calling thread once a permit is available, recording it as
+     * working on the tasks.
+     *
+     * @param tasks - snapshot tasks the command works on
+     * @param command - command to run
+     */
+    public void runTracked(Collection<SnapshotTask> tasks, Runnable command) {
+        permits.acquireUninterruptibly();
+        Thread thread = Thread.currentThread();
+        running.put(thread, new RunningTasks(thread, tasks));
+        try {
+            command.run();
+        } finally {
+            running.remove(thread);
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the threads working on snapshot tasks, longest running first
+     */
+    public List<RunningTasks> getRunningTasks() {
+        List<RunningTasks> result = Lists.newArrayList(running.values());
+        Collections.sort(result, new Comparator<RunningTasks>() {
+            @Override
+            public int compare(RunningTasks first, RunningTasks second) {
+                return Long.compare(first.startMillis, second.startMillis);
+            }
+        });
+        return result;
+    }
+
+    public synchronized int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    /**
+     * Changes how many tasks may run at the same time. Running tasks are not interrupted;
+     * when the limit is lowered, waiting tasks start once enough running tasks have finished.
+     *
+     * @param maxConcurrentTasks - new limit, at least 1
+     */
+    public synchronized void setMaxConcurrentTasks(int maxConcurrentTasks) {
+        if (maxConcurrentTasks < 1) {
+            throw new IllegalArgumentException("maxConcurrentTasks must be at least 1: " + maxConcurrentTasks);
+        }
+        if (maxConcurrentTasks > this.maxConcurrentTasks) {
+            permits.release(maxConcurrentTasks - this.maxConcurrentTasks);
+        } else {
+            permits.reduce(this.maxConcurrentTasks - maxConcurrentTasks);
+        }
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        logger.info("Snapshot tasks limited to " + maxConcurrentTasks + " at a time");
+    }
+
+    /**
+     * @return number of threads running a task step, prepares and posts
+     */
+    public int getActiveCount() {
+        return running.size();
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return pool.getLargestPoolSize();
+    }
+
+    /**
+     * @return number of tasks waiting for a permit
+     */
+    public int getQueueSize() {
+        return permits.getQueueLength();
+    }
+
+    public long getCompletedTaskCount() {
+        return pool.getCompletedTaskCount();
+    }
+}
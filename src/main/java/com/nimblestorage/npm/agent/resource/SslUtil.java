@@ -10,18 +10,24 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -40,11 +46,17 @@ import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 public class SslUtil {
-    private static final String RSA = "RSA";
     private static final String BC = "BC";
     private static final String JCEKS = "JCEKS";
+    private static final String EC_CURVE = "secp256r1";
+    private static final int RSA_KEY_SIZE = 3072;
+    private static final int MIN_RSA_KEY_SIZE = 2048;
+    private static final int VALIDITY_DAYS = 3650;
 
+    public static final String RSA = "RSA";
+    public static final String EC = "EC";
     public static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    public static final String EC_SIGNATURE_ALGORITHM = "SHA256withECDSA";
 
     static {
         // prevents NoSuchProviderException:no such provider: BC
@@ -58,24 +70,47 @@ public class SslUtil {
      * @param alias keystore alias
      * @param keystoreFilename keystore filename
      * @param passwd keystore password
+     * @param keyAlgorithm EC (P-256) or RSA (3072 bit)
      */
-    public static void generateAndStoreKeyAndCertificate(String cn, List<GeneralName> subjectAltNames, String alias, String keystoreFilename, char[] passwd) throws IOException, Exception {
+    public static void generateAndStoreKeyAndCertificate(String cn, List<GeneralName> subjectAltNames, String alias, String keystoreFilename, char[] passwd,
+            String keyAlgorithm) throws IOException, Exception {
+        KeyStore keyStore = getKeystoreFromFile(keystoreFilename, passwd);
+        generateKeyAndCertificate(keyStore, cn, subjectAltNames, alias, passwd, keyAlgorithm);
+        writeKeystore(keyStore, keystoreFilename, passwd);
+    }
+
+    /**
+     * Generate a key pair and self-signed certificate and add it to the keystore, without writing the keystore.
+     * @param keyStore keystore
+     * @param cn X.500 distinguished name (CN=)
+     * @param subjectAltNames ip addresses
+     * @param alias keystore alias
+     * @param passwd key password
+     * @param keyAlgorithm EC (P-256) or RSA (3072 bit)
+     */
+    public static void generateKeyAndCertificate(KeyStore keyStore, String cn, List<GeneralName> subjectAltNames, String alias, char[] passwd,
+            String keyAlgorithm) throws IOException, Exception {
+        boolean ec = EC.equalsIgnoreCase(keyAlgorithm);
         KeyPairGenerator keyPairGenerator = null;
         try {
-            keyPairGenerator = KeyPairGenerator.getInstance(RSA, BC);
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            keyPairGenerator = KeyPairGenerator.getInstance(ec ? EC : RSA, BC);
+            if (ec) {
+                keyPairGenerator.initialize(new ECGenParameterSpec(EC_CURVE), new SecureRandom());
+            } else {
+                keyPairGenerator.initialize(RSA_KEY_SIZE, new SecureRandom());
+            }
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
             throw new Exception("Error creating key pair.", e);
         }
-        keyPairGenerator.initialize(1024, new SecureRandom());
         KeyPair keyPair = keyPairGenerator.generateKeyPair();
 
         X500Principal principal = new X500Principal("CN=" + cn);
 
         X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(
                 principal,
-                BigInteger.valueOf(1),
+                BigInteger.valueOf(System.currentTimeMillis()),
                 new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)),
-                new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3650)),
+                new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(VALIDITY_DAYS)),
                 principal,
                 keyPair.getPublic());
 
@@ -86,17 +121,31 @@ public class SslUtil {
 
         ContentSigner signer = null;
         try {
-            signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).setProvider(BC).build(keyPair.getPrivate());
+            signer = new JcaContentSignerBuilder(ec ? EC_SIGNATURE_ALGORITHM : SIGNATURE_ALGORITHM).setProvider(BC).build(keyPair.getPrivate());
             X509Certificate selfCert = new JcaX509CertificateConverter().setProvider(BC).getCertificate(certificateBuilder.build(signer));
-
-            KeyStore keyStore = getKeystoreFromFile(keystoreFilename, passwd);
             keyStore.setKeyEntry(alias, keyPair.getPrivate(), passwd, new Certificate[] { selfCert });
-            writeKeystore(keyStore, keystoreFilename, passwd);
         } catch (OperatorCreationException | CertificateException | KeyStoreException e) {
             throw new Exception("Error creating certificate.", e);
         }
     }
 
+    /**
+     * @param certificate certificate to check
+     * @return true if the certificate's key is an RSA key shorter than 2048 bit
+     */
+    public static boolean isWeakKey(X509Certificate certificate) {
+        PublicKey publicKey = certificate.getPublicKey();
+        return publicKey instanceof RSAPublicKey && ((RSAPublicKey) publicKey).getModulus().bitLength() < MIN_RSA_KEY_SIZE;
+    }
+
+    /**
+     * @param certificate certificate to check
+     * @return true if the certificate was issued by the agent itself rather than imported
+     */
+    public static boolean isSelfSigned(X509Certificate certificate) {
+        return certificate.getIssuerX500Principal().equals(certificate.getSubjectX500Principal());
+    }
+
     public static KeyStore getKeystoreFromFile(String filename, char[] passwd) throws Exception {
         KeyStore keyStore = null;
         if (!Files.exists(Paths.get(filename))) {
@@ -118,12 +167,23 @@ public class SslUtil {
         return keyStore;
     }
 
+    /**
+     * Write the keystore to a temporary file and move it into place, so that
+     * readers never see a partially written keystore.
+     */
     public static void writeKeystore(KeyStore keyStore, String filename, char[] passwd) throws Exception {
-        try (OutputStream fos = new FileOutputStream(filename)) {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream fos = new FileOutputStream(temp.toFile())) {
             keyStore.store(fos, passwd);
         } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
             throw new Exception("Error closing keystore.", e);
         }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new Exception("Error replacing keystore.", e);
+        }
     }
 
 }
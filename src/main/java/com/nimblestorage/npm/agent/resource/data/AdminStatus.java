@@ -0,0 +1,335 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource.data;
+
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Runtime state of the agent, as shown by the admin resource.
+ */
+public class AdminStatus {
+    private String target;
+    private String circuitState;
+    private List<PreparedSnapshotInfo> preparedSnapshots;
+    private List<RunningTaskInfo> runningTasks;
+    private int trackedTasks;
+    private int pipelineQueueLength;
+    private int maxConcurrentTasks;
+    private int activeThreads;
+    private int poolSize;
+    private int largestPoolSize;
+    private int queuedTasks;
+    private long completedTasks;
+    private long prepares;
+    private long closes;
+    private long failedCloses;
+    private long rejectedCloses;
+    private int waitSecs;
+    private int timeoutSecs;
+
+    public AdminStatus() {
+    }
+
+    /**
+     * @return HANA target in the form host:port/instance
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @return state of the circuit breaker for HANA: CLOSED, OPEN or HALF_OPEN
+     */
+    public String getCircuitState() {
+        return circuitState;
+    }
+
+    public void setCircuitState(String circuitState) {
+        this.circuitState = circuitState;
+    }
+
+    /**
+     * @return HANA snapshots prepared and not yet closed, oldest first
+     */
+    public List<PreparedSnapshotInfo> getPreparedSnapshots() {
+        return preparedSnapshots;
+    }
+
+    public void setPreparedSnapshots(List<PreparedSnapshotInfo> preparedSnapshots) {
+        this.preparedSnapshots = preparedSnapshots;
+    }
+
+    /**
+     * @return threads working on snapshot tasks, longest running first
+     */
+    public List<RunningTaskInfo> getRunningTasks() {
+        return runningTasks;
+    }
+
+    public void setRunningTasks(List<RunningTaskInfo> runningTasks) {
+        this.runningTasks = runningTasks;
+    }
+
+    /**
+     * @return number of snapshot tasks the agent keeps the status of
+     */
+    public int getTrackedTasks() {
+        return trackedTasks;
+    }
+
+    public void setTrackedTasks(int trackedTasks) {
+        this.trackedTasks = trackedTasks;
+    }
+
+    /**
+     * @return number of pre-snapshot tasks waiting for the prepared HANA snapshot to be closed
+     */
+    public int getPipelineQueueLength() {
+        return pipelineQueueLength;
+    }
+
+    public void setPipelineQueueLength(int pipelineQueueLength) {
+        this.pipelineQueueLength = pipelineQueueLength;
+    }
+
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public void setMaxConcurrentTasks(int maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    /**
+     * @return number of threads running a snapshot task step, prepares and posts
+     */
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    public void setActiveThreads(int activeThreads) {
+        this.activeThreads = activeThreads;
+    }
+
+    /**
+     * @return number of executor threads
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getLargestPoolSize() {
+        return largestPoolSize;
+    }
+
+    public void setLargestPoolSize(int largestPoolSize) {
+        this.largestPoolSize = largestPoolSize;
+    }
+
+    /**
+     * @return number of snapshot task steps waiting for the concurrency limit
+     */
+    public int getQueuedTasks() {
+        return queuedTasks;
+    }
+
+    public void setQueuedTasks(int queuedTasks) {
+        this.queuedTasks = queuedTasks;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    public void setCompletedTasks(long completedTasks) {
+        this.completedTasks = completedTasks;
+    }
+
+    /**
+     * @return HANA snapshots prepared since the agent started
+     */
+    public long getPrepares() {
+        return prepares;
+    }
+
+    public void setPrepares(long prepares) {
+        this.prepares = prepares;
+    }
+
+    /**
+     * @return HANA snapshots closed since the agent started
+     */
+    public long getCloses() {
+        return closes;
+    }
+
+    public void setCloses(long closes) {
+        this.closes = closes;
+    }
+
+    public long getFailedCloses() {
+        return failedCloses;
+    }
+
+    public void setFailedCloses(long failedCloses) {
+        this.failedCloses = failedCloses;
+    }
+
+    /**
+     * @return attempts to close a HANA snapshot that was being closed or closed already
+     */
+    public long getRejectedCloses() {
+        return rejectedCloses;
+    }
+
+    public void setRejectedCloses(long rejectedCloses) {
+        this.rejectedCloses = rejectedCloses;
+    }
+
+    /**
+     * @return current wait after preparing a HANA snapshot
+     */
+    public int getWaitSecs() {
+        return waitSecs;
+    }
+
+    public void setWaitSecs(int waitSecs) {
+        this.waitSecs = waitSecs;
+    }
+
+    /**
+     * @return current timeout of a prepared HANA snapshot
+     */
+    public int getTimeoutSecs() {
+        return timeoutSecs;
+    }
+
+    public void setTimeoutSecs(int timeoutSecs) {
+        this.timeoutSecs = timeoutSecs;
+    }
+
+    public AdminStatus withTarget(String target) {
+        this.target = target;
+        return this;
+    }
+
+    public AdminStatus withCircuitState(String circuitState) {
+        this.circuitState = circuitState;
+        return this;
+    }
+
+    public AdminStatus withPreparedSnapshots(List<PreparedSnapshotInfo> preparedSnapshots) {
+        this.preparedSnapshots = preparedSnapshots;
+        return this;
+    }
+
+    public AdminStatus withRunningTasks(List<RunningTaskInfo> runningTasks) {
+        this.runningTasks = runningTasks;
+        return this;
+    }
+
+    public AdminStatus withTrackedTasks(int trackedTasks) {
+        this.trackedTasks = trackedTasks;
+        return this;
+    }
+
+    public AdminStatus withPipelineQueueLength(int pipelineQueueLength) {
+        this.pipelineQueueLength = pipelineQueueLength;
+        return this;
+    }
+
+    public AdminStatus withMaxConcurrentTasks(int maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        return this;
+    }
+
+    public AdminStatus withActiveThreads(int activeThreads) {
+        this.activeThreads = activeThreads;
+        return this;
+    }
+
+    public AdminStatus withPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public AdminStatus withLargestPoolSize(int largestPoolSize) {
+        this.largestPoolSize = largestPoolSize;
+        return this;
+    }
+
+    public AdminStatus withQueuedTasks(int queuedTasks) {
+        this.queuedTasks = queuedTasks;
+        return this;
+    }
+
+    public AdminStatus withCompletedTasks(long completedTasks) {
+        this.completedTasks = completedTasks;
+        return this;
+    }
+
+    public AdminStatus withPrepares(long prepares) {
+        this.prepares = prepares;
+        return this;
+    }
+
+    public AdminStatus withCloses(long closes) {
+        this.closes = closes;
+        return this;
+    }
+
+    public AdminStatus withFailedCloses(long failedCloses) {
+        this.failedCloses = failedCloses;
+        return this;
+    }
+
+    public AdminStatus withRejectedCloses(long rejectedCloses) {
+        this.rejectedCloses = rejectedCloses;
+        return this;
+    }
+
+    public AdminStatus withWaitSecs(int waitSecs) {
+        this.waitSecs = waitSecs;
+        return this;
+    }
+
+    public AdminStatus withTimeoutSecs(int timeoutSecs) {
+        this.timeoutSecs = timeoutSecs;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("target", target)
+                .add("circuitState", circuitState)
+                .add("preparedSnapshots", preparedSnapshots)
+                .add("runningTasks", runningTasks)
+                .add("trackedTasks", trackedTasks)
+                .add("pipelineQueueLength", pipelineQueueLength)
+                .add("maxConcurrentTasks", maxConcurrentTasks)
+                .add("activeThreads", activeThreads)
+                .add("poolSize", poolSize)
+                .add("largestPoolSize", largestPoolSize)
+                .add("queuedTasks", queuedTasks)
+                .add("completedTasks", completedTasks)
+                .add("prepares", prepares)
+                .add("closes", closes)
+                .add("failedCloses", failedCloses)
+                .add("rejectedCloses", rejectedCloses)
+                .add("waitSecs", waitSecs)
+                .add("timeoutSecs", timeoutSecs)
+                .toString();
+    }
+}
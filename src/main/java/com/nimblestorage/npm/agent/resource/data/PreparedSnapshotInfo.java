@@ -0,0 +1,110 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource.data;
+
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A HANA snapshot the agent has prepared and not yet closed, as shown by the admin resource.
+ */
+public class PreparedSnapshotInfo {
+    private String backupId;
+    private List<String> snapshotNames;
+    private long preparedAt;
+    private long ageSecs;
+    private String state;
+
+    public PreparedSnapshotInfo() {
+    }
+
+    public String getBackupId() {
+        return backupId;
+    }
+
+    public void setBackupId(String backupId) {
+        this.backupId = backupId;
+    }
+
+    /**
+     * @return names of the storage snapshots taken while the HANA snapshot is prepared
+     */
+    public List<String> getSnapshotNames() {
+        return snapshotNames;
+    }
+
+    public void setSnapshotNames(List<String> snapshotNames) {
+        this.snapshotNames = snapshotNames;
+    }
+
+    /**
+     * @return time the snapshot was prepared in milliseconds since the epoch
+     */
+    public long getPreparedAt() {
+        return preparedAt;
+    }
+
+    public void setPreparedAt(long preparedAt) {
+        this.preparedAt = preparedAt;
+    }
+
+    /**
+     * @return seconds since the snapshot was prepared
+     */
+    public long getAgeSecs() {
+        return ageSecs;
+    }
+
+    public void setAgeSecs(long ageSecs) {
+        this.ageSecs = ageSecs;
+    }
+
+    /**
+     * @return PREPARED, or CLOSING while a close is in progress
+     */
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public PreparedSnapshotInfo withBackupId(String backupId) {
+        this.backupId = backupId;
+        return this;
+    }
+
+    public PreparedSnapshotInfo withSnapshotNames(List<String> snapshotNames) {
+        this.snapshotNames = snapshotNames;
+        return this;
+    }
+
+    public PreparedSnapshotInfo withPreparedAt(long preparedAt) {
+        this.preparedAt = preparedAt;
+        return this;
+    }
+
+    public PreparedSnapshotInfo withAgeSecs(long ageSecs) {
+        this.ageSecs = ageSecs;
+        return this;
+    }
+
+    public PreparedSnapshotInfo withState(String state) {
+        this.state = state;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("backupId", backupId)
+                .add("snapshotNames", snapshotNames)
+                .add("preparedAt", preparedAt)
+                .add("ageSecs", ageSecs)
+                .add("state", state)
+                .toString();
+    }
+}
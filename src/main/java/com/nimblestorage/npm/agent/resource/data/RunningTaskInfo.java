@@ -0,0 +1,122 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource.data;
+
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A thread working on snapshot tasks, as shown by the admin resource.
+ */
+public class RunningTaskInfo {
+    private String threadName;
+    private String threadState;
+    private List<String> taskIds;
+    private List<String> snapshotNames;
+    private long runningSecs;
+    private List<String> stackTrace;
+
+    public RunningTaskInfo() {
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public void setThreadName(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * @return state of the thread, e.g. RUNNABLE, TIMED_WAITING
+     */
+    public String getThreadState() {
+        return threadState;
+    }
+
+    public void setThreadState(String threadState) {
+        this.threadState = threadState;
+    }
+
+    public List<String> getTaskIds() {
+        return taskIds;
+    }
+
+    public void setTaskIds(List<String> taskIds) {
+        this.taskIds = taskIds;
+    }
+
+    public List<String> getSnapshotNames() {
+        return snapshotNames;
+    }
+
+    public void setSnapshotNames(List<String> snapshotNames) {
+        this.snapshotNames = snapshotNames;
+    }
+
+    /**
+     * @return seconds the thread has been working on the tasks
+     */
+    public long getRunningSecs() {
+        return runningSecs;
+    }
+
+    public void setRunningSecs(long runningSecs) {
+        this.runningSecs = runningSecs;
+    }
+
+    /**
+     * @return stack of the thread, innermost frame first; only included in thread dumps
+     */
+    public List<String> getStackTrace() {
+        return stackTrace;
+    }
+
+    public void setStackTrace(List<String> stackTrace) {
+        this.stackTrace = stackTrace;
+    }
+
+    public RunningTaskInfo withThreadName(String threadName) {
+        this.threadName = threadName;
+        return this;
+    }
+
+    public RunningTaskInfo withThreadState(String threadState) {
+        this.threadState = threadState;
+        return this;
+    }
+
+    public RunningTaskInfo withTaskIds(List<String> taskIds) {
+        this.taskIds = taskIds;
+        return this;
+    }
+
+    public RunningTaskInfo withSnapshotNames(List<String> snapshotNames) {
+        this.snapshotNames = snapshotNames;
+        return this;
+    }
+
+    public RunningTaskInfo withRunningSecs(long runningSecs) {
+        this.runningSecs = runningSecs;
+        return this;
+    }
+
+    public RunningTaskInfo withStackTrace(List<String> stackTrace) {
+        this.stackTrace = stackTrace;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("threadName", threadName)
+                .add("threadState", threadState)
+                .add("taskIds", taskIds)
+                .add("snapshotNames", snapshotNames)
+                .add("runningSecs", runningSecs)
+                .add("stackTrace", stackTrace)
+                .toString();
+    }
+}
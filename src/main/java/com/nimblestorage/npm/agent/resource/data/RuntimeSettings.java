@@ -0,0 +1,95 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource.data;
+
+import java.util.Map;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Settings of the agent that can be changed while it runs. Fields left null are not changed.
+ */
+public class RuntimeSettings {
+    private Integer maxConcurrentTasks;
+    private Integer minWaitSecs;
+    private Integer maxWaitSecs;
+    private Map<String, String> logLevels;
+
+    public RuntimeSettings() {
+    }
+
+    /**
+     * @return number of snapshot task steps that may run against HANA at the same time
+     */
+    public Integer getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public void setMaxConcurrentTasks(Integer maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    /**
+     * @return shortest wait after preparing a HANA snapshot
+     */
+    public Integer getMinWaitSecs() {
+        return minWaitSecs;
+    }
+
+    public void setMinWaitSecs(Integer minWaitSecs) {
+        this.minWaitSecs = minWaitSecs;
+    }
+
+    /**
+     * @return longest wait after preparing a HANA snapshot
+     */
+    public Integer getMaxWaitSecs() {
+        return maxWaitSecs;
+    }
+
+    public void setMaxWaitSecs(Integer maxWaitSecs) {
+        this.maxWaitSecs = maxWaitSecs;
+    }
+
+    /**
+     * @return log level by logger name, "root" for the root logger
+     */
+    public Map<String, String> getLogLevels() {
+        return logLevels;
+    }
+
+    public void setLogLevels(Map<String, String> logLevels) {
+        this.logLevels = logLevels;
+    }
+
+    public RuntimeSettings withMaxConcurrentTasks(Integer maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        return this;
+    }
+
+    public RuntimeSettings withMinWaitSecs(Integer minWaitSecs) {
+        this.minWaitSecs = minWaitSecs;
+        return this;
+    }
+
+    public RuntimeSettings withMaxWaitSecs(Integer maxWaitSecs) {
+        this.maxWaitSecs = maxWaitSecs;
+        return this;
+    }
+
+    public RuntimeSettings withLogLevels(Map<String, String> logLevels) {
+        this.logLevels = logLevels;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("maxConcurrentTasks", maxConcurrentTasks)
+                .add("minWaitSecs", minWaitSecs)
+                .add("maxWaitSecs", maxWaitSecs)
+                .add("logLevels", logLevels)
+                .toString();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource.data;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A state transition of a snapshot task, as pushed to event stream subscribers.
+ */
+public class SnapshotTaskEvent {
+    private long sequence;
+    private String taskId;
+    private String snapshotName;
+    private String phase;
+    private SnapshotTaskStatus status;
+    private String message;
+    private long timestamp;
+    private long elapsedMillis;
+    private long phaseMillis;
+
+    public SnapshotTaskEvent() {
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    public void setSnapshotName(String snapshotName) {
+        this.snapshotName = snapshotName;
+    }
+
+    /**
+     * @return step of the task the transition entered, e.g. queued, preparing, prepared
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public SnapshotTaskStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(SnapshotTaskStatus status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return time of the transition in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return milliseconds since the task was accepted
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return milliseconds spent in the previous phase
+     */
+    public long getPhaseMillis() {
+        return phaseMillis;
+    }
+
+    public void setPhaseMillis(long phaseMillis) {
+        this.phaseMillis = phaseMillis;
+    }
+
+    public SnapshotTaskEvent withSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    public SnapshotTaskEvent withTaskId(String taskId) {
+        this.taskId = taskId;
+        return this;
+    }
+
+    public SnapshotTaskEvent withSnapshotName(String snapshotName) {
+        this.snapshotName = snapshotName;
+        return this;
+    }
+
+    public SnapshotTaskEvent withPhase(String phase) {
+        this.phase = phase;
+        return this;
+    }
+
+    public SnapshotTaskEvent withStatus(SnapshotTaskStatus status) {
+        this.status = status;
+        return this;
+    }
+
+    public SnapshotTaskEvent withMessage(String message) {
+        this.message = message;
+        return this;
+    }
+
+    public SnapshotTaskEvent withTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    public SnapshotTaskEvent withElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+        return this;
+    }
+
+    public SnapshotTaskEvent withPhaseMillis(long phaseMillis) {
+        this.phaseMillis = phaseMillis;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("sequence", sequence)
+                .add("taskId", taskId)
+                .add("snapshotName", snapshotName)
+                .add("phase", phase)
+                .add("status", status)
+                .add("message", message)
+                .add("timestamp", timestamp)
+                .add("elapsedMillis", elapsedMillis)
+                .add("phaseMillis", phaseMillis)
+                .toString();
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.data.KeyValue;
+
+public class HanaMetadataTest {
+
+    @Test
+    public void valuesHanaDidNotReportAreSkipped() {
+        // A monitoring user without access to M_LANDSCAPE_HOST_CONFIGURATION and M_LOG_SEGMENTS
+        HanaMetadata metadata = new HanaMetadata("HDB", "SYSTEMDB", "2.00.040", null, null, 1000L);
+
+        Map<String, String> values = Maps.newHashMap();
+        for (KeyValue keyValue : metadata.toKeyValues()) {
+            assertNotNull(keyValue.getKey(), keyValue.getValue());
+            values.put(keyValue.getKey(), keyValue.getValue());
+        }
+        assertEquals(4, values.size());
+        assertEquals("HDB", values.get(HanaMetadata.SID_KEY));
+        assertEquals("1000", values.get(HanaMetadata.METADATA_TIME_KEY));
+    }
+
+    @Test
+    public void missingBackupIdIsNotAdded() {
+        List<KeyValue> metadata = Lists.newArrayList();
+        HanaMetadata.addKeyValue(metadata, HanaMetadata.BACKUP_ID_KEY, null);
+        assertEquals(0, metadata.size());
+    }
+}
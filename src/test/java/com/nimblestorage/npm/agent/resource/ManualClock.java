@@ -0,0 +1,94 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Clock that only moves when a test advances it. Scheduled commands run on the thread
+ * advancing the clock once they are due. A sleeping thread advances the clock itself,
+ * so waits end right away.
+ */
+class ManualClock extends AgentClock {
+
+    private static class Scheduled {
+        private final long dueMillis;
+        private final FutureTask<Void> task;
+
+        Scheduled(long dueMillis, FutureTask<Void> task) {
+            this.dueMillis = dueMillis;
+            this.task = task;
+        }
+    }
+
+    private static final Comparator<Scheduled> DUE_ORDER = new Comparator<Scheduled>() {
+        @Override
+        public int compare(Scheduled first, Scheduled second) {
+            return Long.compare(first.dueMillis, second.dueMillis);
+        }
+    };
+
+    private long nowMillis;
+    private final List<Scheduled> scheduled = Lists.newArrayList();
+
+    ManualClock(long startMillis) {
+        this.nowMillis = startMillis;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return nowMillis;
+    }
+
+    @Override
+    public void sleep(long millis) {
+        advance(millis);
+    }
+
+    @Override
+    public synchronized Future<?> schedule(final Runnable command, long delayMillis) {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                command.run();
+                return null;
+            }
+        });
+        scheduled.add(new Scheduled(nowMillis + delayMillis, task));
+        return task;
+    }
+
+    /**
+     * Moves the clock forward and runs the commands that are due, in the order they are due.
+     *
+     * @param millis - milliseconds to advance by
+     */
+    void advance(long millis) {
+        List<Scheduled> due = Lists.newArrayList();
+        synchronized (this) {
+            nowMillis += millis;
+            Iterator<Scheduled> it = scheduled.iterator();
+            while (it.hasNext()) {
+                Scheduled next = it.next();
+                if (next.dueMillis <= nowMillis) {
+                    due.add(next);
+                    it.remove();
+                }
+            }
+        }
+        Collections.sort(due, DUE_ORDER);
+        // Commands may schedule further commands, so they run outside the lock
+        for (Scheduled next : due) {
+            next.task.run();
+        }
+    }
+}
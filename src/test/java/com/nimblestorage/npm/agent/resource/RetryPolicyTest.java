@@ -0,0 +1,38 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void connectionErrorsAndTimeoutsMeanUnavailable() {
+        assertTrue(RetryPolicy.isUnavailable(new SQLTransientConnectionException("connection reset")));
+        assertTrue(RetryPolicy.isUnavailable(new SQLTimeoutException("statement timed out")));
+        assertTrue(RetryPolicy.isUnavailable(new SQLException("connection failed", "08001")));
+    }
+
+    @Test
+    public void errorsFromHanaDoNotMeanUnavailable() {
+        assertFalse(RetryPolicy.isUnavailable(new SQLTransactionRollbackException("deadlock")));
+        assertFalse(RetryPolicy.isUnavailable(new SQLException("invalid user or password", "28000", 10)));
+    }
+
+    @Test
+    public void onlyTransientConnectionErrorsAreRetriedOnTheSameConnection() {
+        assertTrue(RetryPolicy.isStatementRetryable(new SQLTransientConnectionException("connection reset")));
+        assertFalse(RetryPolicy.isStatementRetryable(new SQLTimeoutException("statement timed out")));
+        assertFalse(RetryPolicy.isStatementRetryable(new SQLTransactionRollbackException("deadlock")));
+        assertFalse(RetryPolicy.isRetryable(new SQLTimeoutException("statement timed out")));
+    }
+}
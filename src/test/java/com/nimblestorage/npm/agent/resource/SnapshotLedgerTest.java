@@ -0,0 +1,98 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SnapshotLedgerTest {
+    private static final int CLOSERS = 8;
+
+    private ManualClock clock;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock(TimeUnit.DAYS.toMillis(1));
+        AgentClock.set(clock);
+    }
+
+    @After
+    public void tearDown() {
+        AgentClock.set(null);
+    }
+
+    @Test
+    public void onlyOneConcurrentCloseIsGranted() throws Exception {
+        final SnapshotLedger ledger = new SnapshotLedger("ledger-test");
+        final PreparedSnapshot prepared = new PreparedSnapshot("1", Arrays.asList("a"), 60);
+        ledger.prepared(prepared);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(CLOSERS);
+        try {
+            java.util.List<Future<Boolean>> claims = Lists.newArrayList();
+            for (int i = 0; i < CLOSERS; i++) {
+                claims.add(threads.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return ledger.beginClose(prepared);
+                    }
+                }));
+            }
+            start.countDown();
+            int granted = 0;
+            for (Future<Boolean> claim : claims) {
+                if (claim.get(10, TimeUnit.SECONDS)) {
+                    granted++;
+                }
+            }
+            assertEquals(1, granted);
+        } finally {
+            threads.shutdownNow();
+        }
+        ledger.endClose(prepared, true);
+
+        assertEquals(1, ledger.getPrepares());
+        assertEquals(1, ledger.getCloses());
+        assertEquals(CLOSERS - 1, ledger.getRejectedCloses());
+        assertTrue(ledger.getOpen().isEmpty());
+        assertFalse(ledger.beginClose(prepared));
+    }
+
+    @Test
+    public void failedCloseKeepsSnapshotOpenUntilItExpires() {
+        SnapshotLedger ledger = new SnapshotLedger("ledger-test");
+        PreparedSnapshot prepared = new PreparedSnapshot("1", Arrays.asList("a"), 60);
+        ledger.prepared(prepared);
+
+        assertTrue(ledger.beginClose(prepared));
+        ledger.endClose(prepared, false);
+        assertEquals(1, ledger.getFailedCloses());
+        assertEquals(Arrays.asList(prepared), ledger.getOpen());
+        assertTrue(ledger.getExpired().isEmpty());
+
+        clock.advance(TimeUnit.SECONDS.toMillis(61));
+        assertEquals(Arrays.asList(prepared), ledger.getExpired());
+        assertTrue(ledger.beginClose(prepared));
+        ledger.endClose(prepared, true);
+        assertEquals(1, ledger.getCloses());
+        assertTrue(ledger.getOpen().isEmpty());
+    }
+}
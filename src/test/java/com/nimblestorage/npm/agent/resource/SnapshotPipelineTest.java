@@ -0,0 +1,179 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+
+public class SnapshotPipelineTest {
+    private static final int TIMEOUT_SECS = 600;
+
+    private ManualClock clock;
+    // Prepare steps the pipeline started, in order
+    private final List<Runnable> started = Lists.newArrayList();
+    private SnapshotPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock(TimeUnit.DAYS.toMillis(1));
+        AgentClock.set(clock);
+        pipeline = new SnapshotPipeline("pipeline-test", new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                started.add(command);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        AgentClock.set(null);
+    }
+
+    @Test
+    public void queuedPrepareStartsWhenSnapshotIsClosed() {
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        assertEquals(1, started.size());
+        pipeline.prepared(prepared("a", TIMEOUT_SECS));
+
+        List<SnapshotTask> queued = tasks("b");
+        pipeline.submit(queued, step("b"), step("cancel b"));
+        assertEquals(1, started.size());
+        assertEquals(1, pipeline.getQueueLength());
+        assertTrue(queued.get(0).getMessage().contains("queue position 1"));
+
+        pipeline.closed(backupId("a"));
+        assertEquals(2, started.size());
+        assertEquals(0, pipeline.getQueueLength());
+    }
+
+    @Test
+    public void queuedPrepareStartsWhenSnapshotExpires() {
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        pipeline.prepared(prepared("a", TIMEOUT_SECS));
+        pipeline.submit(tasks("b"), step("b"), step("cancel b"));
+
+        clock.advance(TimeUnit.SECONDS.toMillis(TIMEOUT_SECS) - 1);
+        assertEquals(1, started.size());
+        // The expiry check runs on the clock
+        clock.advance(1);
+        assertEquals(2, started.size());
+        assertEquals(0, pipeline.getQueueLength());
+    }
+
+    @Test
+    public void pipelineAndLedgerExpireSnapshotTogether() {
+        SnapshotLedger ledger = new SnapshotLedger("pipeline-test");
+        PreparedSnapshot prepared = prepared("a", TIMEOUT_SECS);
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        ledger.prepared(prepared);
+        pipeline.prepared(prepared);
+        pipeline.submit(tasks("b"), step("b"), step("cancel b"));
+
+        clock.advance(TimeUnit.SECONDS.toMillis(TIMEOUT_SECS) - 1);
+        assertEquals(1, started.size());
+        assertTrue(ledger.getExpired().isEmpty());
+        // The started prepare must find the snapshot expired in the ledger, so it can close it
+        clock.advance(1);
+        assertEquals(2, started.size());
+        assertEquals(Arrays.asList(prepared), ledger.getExpired());
+    }
+
+    @Test
+    public void failedPrepareReleasesPipeline() {
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        pipeline.submit(tasks("b"), step("b"), step("cancel b"));
+        assertEquals(1, started.size());
+
+        pipeline.prepareFailed();
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    public void cancelDropsPrepareOnceAllItsTasksAreCancelled() {
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        pipeline.prepared(prepared("a", TIMEOUT_SECS));
+        List<SnapshotTask> batch = tasks("b", "c");
+        SnapshotTask b = batch.get(0);
+        SnapshotTask c = batch.get(1);
+        AtomicInteger cancelled = new AtomicInteger();
+        pipeline.submit(batch, step("b,c"), counter(cancelled));
+
+        assertTrue(pipeline.cancel(Lists.newArrayList(b)));
+        assertEquals(1, pipeline.getQueueLength());
+        assertEquals(0, cancelled.get());
+
+        assertTrue(pipeline.cancel(Lists.newArrayList(c)));
+        assertEquals(0, pipeline.getQueueLength());
+        assertEquals(1, cancelled.get());
+        assertFalse(pipeline.cancel(Lists.newArrayList(c)));
+
+        pipeline.closed(backupId("a"));
+        assertEquals(1, started.size());
+    }
+
+    @Test
+    public void closeOfAnotherSnapshotIsIgnored() {
+        pipeline.submit(tasks("a"), step("a"), step("cancel a"));
+        pipeline.prepared(prepared("a", TIMEOUT_SECS));
+        pipeline.submit(tasks("b"), step("b"), step("cancel b"));
+
+        pipeline.closed(backupId("x"));
+        assertEquals(1, started.size());
+        assertEquals(1, pipeline.getQueueLength());
+    }
+
+    private static PreparedSnapshot prepared(String name, int timeoutSecs) {
+        return new PreparedSnapshot(backupId(name), Arrays.asList(name), timeoutSecs);
+    }
+
+    private static String backupId(String name) {
+        return "backup-" + name;
+    }
+
+    private static List<SnapshotTask> tasks(String... names) {
+        List<SnapshotTask> tasks = Lists.newArrayList();
+        for (String name : names) {
+            tasks.add(new SnapshotTask().withId(UUID.randomUUID().toString()).withSnapshotName(name).withTimeout(TIMEOUT_SECS));
+        }
+        return tasks;
+    }
+
+    private static Runnable step(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    private static Runnable counter(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,624 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTask;
+import com.nimblestorage.npm.agent.resource.data.SnapshotTaskStatus;
+
+/**
+ * Drives the snapshot task resource against a stub HANA and a manual clock, and checks that
+ * every snapshot HANA prepared is closed exactly once whatever order pre-snapshot, post-snapshot,
+ * delete, expiry and restart happen in.
+ *
+ * The pipeline hands prepare steps to the test, which runs them on its own thread, and
+ * interleavings are set up by holding sessions at gates of the stub. Each test thus runs the
+ * same interleaving every time; real time only bounds how long a test waits for a held session.
+ */
+public class SnapshotTaskResourceImplTest {
+    private static final Logger logger = Logger.getLogger(SnapshotTaskResourceImplTest.class);
+    // Past the timeout of a prepared snapshot
+    private static final long EXPIRY_MILLIS = TimeUnit.SECONDS.toMillis(HanaSampler.DEFAULT_TIMEOUT_SECS + 2);
+    // Bounds the wait for a request running on another thread
+    private static final long AWAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int JOINERS = 8;
+    private static final int THROUGHPUT_CYCLES = 50;
+    private static final int ABANDON_EVERY = 10;
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private ManualClock clock;
+    private StubHana hana;
+    private String prefix;
+    // Prepare steps the pipeline started that the test has not run yet
+    private final BlockingQueue<Runnable> prepares = new LinkedBlockingQueue<Runnable>();
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        // Each test has its own target, so it gets its own pipeline and ledger
+        int instance = instances.incrementAndGet();
+        prefix = "t" + instance + "-";
+        clock = new ManualClock(TimeUnit.DAYS.toMillis(1));
+        AgentClock.set(clock);
+        hana = new StubHana("stub-" + instance + ":30015/HDB");
+        HanaConnections.setFactory(hana.factory());
+        usePreparesOfTest();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+        SnapshotTaskResourceImpl.clearState();
+        HanaConnections.setFactory(null);
+        AgentClock.set(null);
+    }
+
+    @Test
+    public void postClosesPreparedSnapshot() {
+        SnapshotTask pre = pre("alice", "a");
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre));
+        String backupId = hana.getPreparedBackupId();
+        assertNotNull(backupId);
+
+        SnapshotTask post = post("alice", "a");
+        assertEquals(SnapshotTaskStatus.SUCCESS, post.getStatus());
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(1, hana.getPrepares());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void concurrentPostsJoinSingleClose() throws Exception {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+
+        // The first post is closing the snapshot while the others arrive
+        StubHana.Gate close = hana.holdNextClose();
+        Future<SnapshotTask> first = async(new Callable<SnapshotTask>() {
+            @Override
+            public SnapshotTask call() {
+                return post("user0", "a");
+            }
+        });
+        close.awaitArrival();
+        List<SnapshotTask> joined = Lists.newArrayList();
+        for (int i = 1; i < JOINERS; i++) {
+            joined.add(post("user" + i, "a"));
+        }
+        close.release();
+
+        // Authenticated requests for the same snapshot join the task of the first one
+        SnapshotTask post = await(first);
+        for (SnapshotTask joinedPost : joined) {
+            assertTrue(joinedPost == post);
+        }
+        assertEquals(SnapshotTaskStatus.SUCCESS, post.getStatus());
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(1, ledger().getCloses());
+        assertEquals(0, ledger().getRejectedCloses());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void postWinsCloseAgainstExpiry() throws Exception {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+        clock.advance(EXPIRY_MILLIS);
+
+        StubHana.Gate close = hana.holdNextClose();
+        Future<SnapshotTask> post = async(new Callable<SnapshotTask>() {
+            @Override
+            public SnapshotTask call() {
+                return post("alice", "a");
+            }
+        });
+        close.awaitArrival();
+        // The next prepare finds the expired snapshot being closed by the post, and HANA still holding it
+        SnapshotTask next = pre("bob", "b");
+        assertEquals(SnapshotTaskStatus.FAILED, afterPrepares(next));
+        close.release();
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, await(post).getStatus());
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        // The prepare lost the close to the post
+        assertEquals(1, ledger().getRejectedCloses());
+        // A retry of the failed prepare starts a new task
+        SnapshotTask retry = pre("bob", "b");
+        assertFalse(retry == next);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(retry));
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void expiryWinsCloseAgainstPost() throws Exception {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+        clock.advance(EXPIRY_MILLIS);
+
+        // The next prepare is closing the expired snapshot when the post arrives
+        StubHana.Gate close = hana.holdNextClose();
+        SnapshotTask next = pre("bob", "b");
+        Future<?> prepares = runPreparesAsync();
+        close.awaitArrival();
+        SnapshotTask post = post("alice", "a");
+        assertEquals(SnapshotTaskStatus.FAILED, post.getStatus());
+        assertTrue(post.getMessage().contains("expired before all snapshots"));
+        close.release();
+
+        await(prepares);
+        assertEquals(SnapshotTaskStatus.SUCCESS, next.getStatus());
+        assertEquals(StubHana.Outcome.UNSUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void postDuringPrepareWaitFailsAndRetrySucceeds() throws Exception {
+        // HANA is still waiting to prepare the snapshot when the post arrives
+        StubHana.Gate prepare = hana.holdNextPrepare();
+        SnapshotTask pre = pre("alice", "a");
+        Future<?> prepares = runPreparesAsync();
+        prepare.awaitArrival();
+        SnapshotTask early = post("alice", "a");
+        assertEquals(SnapshotTaskStatus.FAILED, early.getStatus());
+        assertTrue(early.getMessage().startsWith("No prepared SAP HANA snapshot"));
+        prepare.release();
+
+        await(prepares);
+        assertEquals(SnapshotTaskStatus.SUCCESS, pre.getStatus());
+        String backupId = hana.getPreparedBackupId();
+        // Failed tasks are not joined, the retry of the post closes the snapshot
+        SnapshotTask retry = post("alice", "a");
+        assertFalse(retry == early);
+        assertEquals(SnapshotTaskStatus.SUCCESS, retry.getStatus());
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void deleteWhileRetryAuthenticatesStartsNewTask() throws Exception {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        final SnapshotTask queued = pre("bob", "b");
+        assertEquals(1, pipeline().getQueueLength());
+
+        // The client gave up on the queued task and retries; the delete lands while the retry authenticates
+        StubHana.Gate connect = hana.holdNextConnect();
+        Future<Response> retryResponse = async(new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource("bob").preSnapshotTask(new SnapshotTask().withSnapshotName(prefix + "b"));
+            }
+        });
+        connect.awaitArrival();
+        assertEquals(Status.OK.getStatusCode(), resource("bob").deleteSnapshotTask(queued.getId()).getStatus());
+        assertEquals(0, pipeline().getQueueLength());
+        connect.release();
+
+        // The retry must not join the deleted task
+        Response response = await(retryResponse);
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        SnapshotTask retry = (SnapshotTask) response.getEntity();
+        assertFalse(retry.getId().equals(queued.getId()));
+        assertEquals(Status.OK.getStatusCode(), resource("bob").getStatus(retry.getId()).getStatus());
+        assertEquals(1, pipeline().getQueueLength());
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("alice", "a").getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(retry));
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEquals(2, hana.getPrepares());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void pipelineThroughput() {
+        // All pre-snapshot tasks arrive at once and queue behind each other
+        List<SnapshotTask> pres = Lists.newArrayList();
+        for (int i = 0; i < THROUGHPUT_CYCLES; i++) {
+            pres.add(pre("user" + i, "s" + i));
+        }
+        assertEquals(THROUGHPUT_CYCLES - 1, pipeline().getQueueLength());
+
+        long startMillis = clock.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int abandoned = 0;
+        Map<String, StubHana.Outcome> outcomes = Maps.newHashMap(); //backupId, expected outcome
+        for (int i = 0; i < THROUGHPUT_CYCLES; i++) {
+            assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pres.get(i)));
+            String backupId = hana.getPreparedBackupId();
+            // The last snapshot is posted, so no snapshot is left for a prepare to expire
+            if (i % ABANDON_EVERY == ABANDON_EVERY / 2) {
+                // Never posted, the next prepare closes it once it expires
+                clock.advance(EXPIRY_MILLIS);
+                abandoned++;
+                outcomes.put(backupId, StubHana.Outcome.UNSUCCESSFUL);
+            } else {
+                assertEquals(SnapshotTaskStatus.SUCCESS, post("user" + i, "s" + i).getStatus());
+                outcomes.put(backupId, StubHana.Outcome.SUCCESSFUL);
+            }
+        }
+        long agentMillis = clock.currentTimeMillis() - startMillis;
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        logger.info(MessageFormat.format("{0} prepare/close cycles, {1} abandoned: {2,number,#} ms agent time, {3,number,#} ms wall time, {4,number,#} cycles per agent hour",
+                THROUGHPUT_CYCLES, abandoned, agentMillis, wallMillis, THROUGHPUT_CYCLES * TimeUnit.HOURS.toMillis(1) / Math.max(1, agentMillis)));
+
+        // Only abandoned snapshots hold up the pipeline, a closed one hands over right away
+        assertEquals(abandoned * EXPIRY_MILLIS, agentMillis);
+        assertEquals(THROUGHPUT_CYCLES, hana.getPrepares());
+        for (Map.Entry<String, StubHana.Outcome> outcome : outcomes.entrySet()) {
+            assertEquals(outcome.getValue(), hana.getOutcome(outcome.getKey()));
+        }
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void queuedPrepareClosesExpiredSnapshot() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+        SnapshotTask queued = pre("bob", "b");
+        assertEquals(SnapshotTaskStatus.ACTIVE, queued.getStatus());
+        assertEquals(1, pipeline().getQueueLength());
+
+        clock.advance(EXPIRY_MILLIS);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queued));
+        assertEquals(StubHana.Outcome.UNSUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(0, pipeline().getQueueLength());
+
+        assertEquals(SnapshotTaskStatus.FAILED, post("alice", "a").getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEquals(2, hana.getPrepares());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void raisedTimeoutDoesNotChainPrepareFailures() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+        // The sampler sees long snapshots and raises the timeout while the snapshot is prepared
+        HanaSampler sampler = HanaSampler.forTarget(hana.getTarget());
+        sampler.record(new HanaStatistics(clock.currentTimeMillis(), 0, HanaSampler.DEFAULT_TIMEOUT_SECS, 0));
+        assertTrue(sampler.getRecommendedTimeoutSecs() > HanaSampler.DEFAULT_TIMEOUT_SECS);
+        SnapshotTask queued = pre("bob", "b");
+        SnapshotTask queuedNext = pre("carol", "c");
+
+        // The snapshot expires by the timeout it was prepared with
+        clock.advance(EXPIRY_MILLIS);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queued));
+        assertEquals(StubHana.Outcome.UNSUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(SnapshotTaskStatus.ACTIVE, queuedNext.getStatus());
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queuedNext));
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("carol", "c").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void queuedPrepareReconnectsDroppedSession() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        SnapshotTask queued = pre("bob", "b");
+        assertTrue(queued.getMessage().matches(".*queue position 1, estimated start at \\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}Z"));
+
+        // HANA drops the session the queued task sits on
+        hana.dropSessions();
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("alice", "a").getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queued));
+        assertEquals(1, hana.getReconnects());
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void deleteCancelsQueuedPrepare() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        SnapshotTask queued = pre("bob", "b");
+        assertEquals(1, pipeline().getQueueLength());
+        assertTrue(hana.isConnected(authHeader("bob")));
+
+        Response deleted = resource("alice").deleteSnapshotTask(queued.getId());
+        assertEquals(Status.OK.getStatusCode(), deleted.getStatus());
+        assertEquals(0, pipeline().getQueueLength());
+        assertFalse(hana.isConnected(authHeader("bob")));
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("alice", "a").getStatus());
+        assertEquals(0, pipeline().getQueueLength());
+        assertEquals(1, hana.getPrepares());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void failedCloseHoldsPipelineUntilExpiry() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+        SnapshotTask queued = pre("bob", "b");
+
+        hana.failNextCloses(1);
+        SnapshotTask post = post("alice", "a");
+        assertEquals(SnapshotTaskStatus.FAILED, post.getStatus());
+        assertTrue(post.getMessage().startsWith("Failed to close"));
+        assertEquals(1, ledger().getFailedCloses());
+        assertEquals(backupId, hana.getPreparedBackupId());
+        // HANA still holds the snapshot, so the queued prepare must wait for the expiry
+        assertEquals(1, pipeline().getQueueLength());
+        assertEquals(SnapshotTaskStatus.ACTIVE, queued.getStatus());
+
+        clock.advance(EXPIRY_MILLIS);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queued));
+        assertEquals(StubHana.Outcome.UNSUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "b").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void partiallyPostedBatchStaysActiveUntilSharedClose() {
+        List<SnapshotTask> batch = preBatch("alice", "a", "b");
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(batch.get(0)));
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(batch.get(1)));
+        assertEquals(1, hana.getPrepares());
+        String backupId = hana.getPreparedBackupId();
+
+        SnapshotTask first = post("alice", "a");
+        assertEquals(SnapshotTaskStatus.ACTIVE, first.getStatus());
+        assertEquals(backupId, hana.getPreparedBackupId());
+
+        SnapshotTask last = post("alice", "b");
+        assertEquals(SnapshotTaskStatus.SUCCESS, last.getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, first.getStatus());
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void unpostedBatchMemberFailsBatchAtExpiry() {
+        List<SnapshotTask> batch = preBatch("alice", "a", "b");
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(batch.get(0)));
+        String backupId = hana.getPreparedBackupId();
+        SnapshotTask first = post("alice", "a");
+        SnapshotTask queued = pre("bob", "c");
+
+        // Snapshot b is never posted, so the posted task waits until the snapshot expires
+        clock.advance(EXPIRY_MILLIS);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(queued));
+        assertEquals(StubHana.Outcome.UNSUCCESSFUL, hana.getOutcome(backupId));
+        assertEquals(SnapshotTaskStatus.FAILED, first.getStatus());
+        assertTrue(first.getMessage().contains("expired before all snapshots"));
+
+        assertEquals(SnapshotTaskStatus.FAILED, post("alice", "b").getStatus());
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "c").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void longBatchLabelFitsExternalBackupId() {
+        String[] names = new String[6];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "volume-collection-" + i + "-snap-o'clock";
+        }
+        List<SnapshotTask> batch = preBatch("alice", names);
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(batch.get(0)));
+        String backupId = hana.getPreparedBackupId();
+        PreparedSnapshot prepared = ledger().getOpen().get(0);
+        assertEquals(names.length, prepared.getSnapshotNames().size());
+
+        for (String name : names) {
+            post("alice", name);
+        }
+        assertEquals(StubHana.Outcome.SUCCESSFUL, hana.getOutcome(backupId));
+        String externalId = hana.getExternalId(backupId);
+        assertEquals(prepared.getExternalId(), externalId);
+        assertEquals(PreparedSnapshot.MAX_EXTERNAL_ID_LENGTH, externalId.length());
+        assertTrue(prepared.getLabel().startsWith(externalId.substring(0, externalId.indexOf('~'))));
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void restartDoesNotWedgePipeline() {
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre("alice", "a")));
+        String backupId = hana.getPreparedBackupId();
+
+        // A restarted agent has no tasks, pipeline or ledger, while HANA keeps the snapshot prepared
+        SnapshotTaskResourceImpl.clearState();
+        hana.setTarget(hana.getTarget() + "-restarted");
+        usePreparesOfTest();
+
+        assertEquals(SnapshotTaskStatus.FAILED, post("alice", "a").getStatus());
+        SnapshotTask pre = pre("bob", "b");
+        assertEquals(SnapshotTaskStatus.FAILED, afterPrepares(pre));
+        assertEquals(backupId, hana.getPreparedBackupId());
+        // The failed prepare released the pipeline, the next one runs instead of waiting for an expiry
+        SnapshotTask retry = pre("bob", "c");
+        assertEquals(SnapshotTaskStatus.FAILED, afterPrepares(retry));
+        assertEquals(0, pipeline().getQueueLength());
+        assertEquals(0, ledger().getPrepares());
+        assertTrue(ledger().getOpen().isEmpty());
+        assertEquals(0, hana.getInvalidCloses());
+    }
+
+    @Test
+    public void retryWithRevokedCredentialsDoesNotJoinTask() {
+        SnapshotTask pre = pre("alice", "a");
+        assertEquals(SnapshotTaskStatus.SUCCESS, afterPrepares(pre));
+        assertTrue(pre == pre("alice", "a"));
+
+        hana.revoke(authHeader("alice"));
+        Response retry = resource("alice").preSnapshotTask(new SnapshotTask().withSnapshotName(prefix + "a"));
+        assertEquals(Status.UNAUTHORIZED.getStatusCode(), retry.getStatus());
+        assertNull(retry.getEntity());
+
+        assertEquals(SnapshotTaskStatus.SUCCESS, post("bob", "a").getStatus());
+        assertEveryPrepareClosedOnce();
+    }
+
+    @Test
+    public void unavailableHanaFailsRequestWithoutStoringTask() {
+        hana.setUnavailableReason("SAP HANA is down");
+        int taskCount = SnapshotTaskResourceImpl.getTaskCount();
+
+        Response response = resource("alice").preSnapshotTask(new SnapshotTask().withSnapshotName(prefix + "a"));
+        assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+        SnapshotTask task = (SnapshotTask) response.getEntity();
+        assertEquals(SnapshotTaskStatus.FAILED, task.getStatus());
+        assertEquals("SAP HANA is down", task.getMessage());
+        assertNotNull(response.getMetadata().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals(taskCount, SnapshotTaskResourceImpl.getTaskCount());
+        assertEquals(0, hana.getPrepares());
+    }
+
+    private void assertEveryPrepareClosedOnce() {
+        SnapshotLedger ledger = ledger();
+        assertEquals(hana.getPrepares(), ledger.getPrepares());
+        assertEquals(ledger.getPrepares(), ledger.getCloses());
+        assertTrue(ledger.getOpen().isEmpty());
+        assertEquals(0, hana.getInvalidCloses());
+        assertNull(hana.getPreparedBackupId());
+    }
+
+    private SnapshotTask pre(String user, String name) {
+        Response response = resource(user).preSnapshotTask(new SnapshotTask().withSnapshotName(prefix + name));
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        return (SnapshotTask) response.getEntity();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<SnapshotTask> preBatch(String user, String... names) {
+        List<SnapshotTask> snapTasks = Lists.newArrayList();
+        for (String name : names) {
+            snapTasks.add(new SnapshotTask().withSnapshotName(prefix + name));
+        }
+        Response response = resource(user).preSnapshotTasks(snapTasks);
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        return (List<SnapshotTask>) response.getEntity();
+    }
+
+    private SnapshotTask post(String user, String name) {
+        Response response = resource(user).postSnapshotTask(new SnapshotTask().withSnapshotName(prefix + name));
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        return (SnapshotTask) response.getEntity();
+    }
+
+    /**
+     * @param user - user the request is authenticated as
+     * @return resource for a single request, as the servlet container creates one
+     */
+    private SnapshotTaskResourceImpl resource(String user) {
+        final String authHeader = authHeader(user);
+        SnapshotTaskResourceImpl resource = new SnapshotTaskResourceImpl();
+        resource.request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader") && "Authorization".equals(args[0])) {
+                            return authHeader;
+                        }
+                        return null;
+                    }
+                });
+        return resource;
+    }
+
+    private String authHeader(String user) {
+        String credentials = prefix + user + ":secret";
+        return "Basic " + Base64.encodeBase64String(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private SnapshotPipeline pipeline() {
+        return SnapshotPipeline.forTarget(hana.getTarget(), SnapshotTaskExecutor.getInstance());
+    }
+
+    private SnapshotLedger ledger() {
+        return SnapshotLedger.forTarget(hana.getTarget());
+    }
+
+    /**
+     * Creates the pipeline of the current target, so that it hands its prepare steps to the test.
+     */
+    private void usePreparesOfTest() {
+        SnapshotPipeline.forTarget(hana.getTarget(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                prepares.add(command);
+            }
+        });
+    }
+
+    /**
+     * Runs the prepare steps the pipeline started, including the ones they start in turn.
+     */
+    private void runPrepares() {
+        Runnable prepare;
+        while ((prepare = prepares.poll()) != null) {
+            prepare.run();
+        }
+    }
+
+    /**
+     * @return the result of runPrepares() on another thread, for a prepare held at a gate
+     */
+    private Future<?> runPreparesAsync() {
+        return threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                runPrepares();
+            }
+        });
+    }
+
+    /**
+     * @param task - task to report on
+     * @return the status of the task once the started prepare steps have run
+     */
+    private SnapshotTaskStatus afterPrepares(SnapshotTask task) {
+        runPrepares();
+        return task.getStatus();
+    }
+
+    /**
+     * @param request - request to run on another thread
+     * @return the result of the request
+     */
+    private <T> Future<T> async(Callable<T> request) {
+        return threads.submit(request);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.get(AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
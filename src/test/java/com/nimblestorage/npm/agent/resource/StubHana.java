@@ -0,0 +1,394 @@
+/**
+ * Copyright 2019 Hewlett Packard Enterprise Development LP
+ */
+package com.nimblestorage.npm.agent.resource;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+
+/**
+ * SAP HANA stub for fault injection. Like HANA it holds at most one prepared data snapshot,
+ * and it records how every snapshot was closed. Closing a snapshot that is not prepared is
+ * counted as an invalid close instead of failing silently, so tests can assert that the agent
+ * closes each prepared snapshot exactly once.
+ *
+ * Sessions can be held at a gate when they connect, prepare or close, so a test can run
+ * other requests at a known point of an interleaving instead of racing threads.
+ */
+class StubHana {
+
+    public enum Outcome {
+        SUCCESSFUL, UNSUCCESSFUL
+    }
+
+    /**
+     * Holds the next session that reaches it until the test releases it.
+     */
+    static class Gate {
+        private final CountDownLatch arrived = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        /**
+         * Waits until a session is held at the gate.
+         */
+        void awaitArrival() throws InterruptedException {
+            if (!arrived.await(GATE_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                throw new AssertionError("No session reached the gate");
+            }
+        }
+
+        /**
+         * Lets the held session continue.
+         */
+        void release() {
+            released.countDown();
+        }
+
+        private void pass() {
+            arrived.countDown();
+            try {
+                if (!released.await(GATE_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Gate was not released");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Bounds how long a forgotten gate can hang a test
+    private static final long GATE_TIMEOUT_SECS = 10;
+
+    // Length of EXTERNAL_BACKUP_ID in M_BACKUP_CATALOG
+    private static final int MAX_EXTERNAL_ID_LENGTH = 64;
+
+    private volatile String target;
+    private volatile String unavailableReason = null;
+    private String preparedBackupId = null;
+    private long nextBackupId = 1000;
+    private int prepares = 0;
+    private int invalidCloses = 0;
+    private int closeFailures = 0;
+    private final Map<String, Outcome> outcomes = Maps.newHashMap(); //backupId, outcome
+    private final Map<String, String> externalIds = Maps.newHashMap(); //backupId, external id of a successful close
+    private final Multiset<String> sessions = ConcurrentHashMultiset.create(); //authorization header of connected sessions
+    private final Set<String> revoked = Sets.newConcurrentHashSet(); //authorization header HANA rejects
+    private final Set<Connection> open = Sets.newConcurrentHashSet();
+    private int reconnects = 0;
+    private final Queue<Gate> connectGates = new ConcurrentLinkedQueue<Gate>();
+    private final Queue<Gate> prepareGates = new ConcurrentLinkedQueue<Gate>();
+    private final Queue<Gate> closeGates = new ConcurrentLinkedQueue<Gate>();
+
+    StubHana(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @return factory for HanaConnections.setFactory() that connects to this database
+     */
+    Supplier<HanaConnection> factory() {
+        return new Supplier<HanaConnection>() {
+            @Override
+            public HanaConnection get() {
+                return new Connection();
+            }
+        };
+    }
+
+    String getTarget() {
+        return target;
+    }
+
+    /**
+     * Changes the target connections report, e.g. to give an agent restarted in the same
+     * JVM fresh per-target state.
+     *
+     * @param target - new target
+     */
+    void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Makes new sessions fail to connect as if HANA could not be reached.
+     *
+     * @param reason - reason sessions report, null to let them connect again
+     */
+    void setUnavailableReason(String reason) {
+        unavailableReason = reason;
+    }
+
+    /**
+     * Makes HANA reject the credentials of new sessions, as if the user was dropped.
+     *
+     * @param authHeader - authorization header with the credentials
+     */
+    void revoke(String authHeader) {
+        revoked.add(authHeader);
+    }
+
+    /**
+     * Makes the next CLOSE statements fail without closing the snapshot.
+     *
+     * @param count - number of CLOSE statements to fail
+     */
+    synchronized void failNextCloses(int count) {
+        closeFailures = count;
+    }
+
+    /**
+     * Holds the next session that connects, before HANA checks its credentials.
+     *
+     * @return gate the session is held at
+     */
+    Gate holdNextConnect() {
+        return hold(connectGates);
+    }
+
+    /**
+     * Holds the next session that prepares a snapshot, as if HANA was still waiting for
+     * running savepoints, before the snapshot is prepared.
+     *
+     * @return gate the session is held at
+     */
+    Gate holdNextPrepare() {
+        return hold(prepareGates);
+    }
+
+    /**
+     * Holds the next session that closes a snapshot, before the snapshot is closed.
+     *
+     * @return gate the session is held at
+     */
+    Gate holdNextClose() {
+        return hold(closeGates);
+    }
+
+    private static Gate hold(Queue<Gate> gates) {
+        Gate gate = new Gate();
+        gates.add(gate);
+        return gate;
+    }
+
+    private static void pass(Queue<Gate> gates) {
+        Gate gate = gates.poll();
+        if (gate != null) {
+            gate.pass();
+        }
+    }
+
+    /**
+     * Drops all open sessions, as HANA does with sessions idle for longer than its
+     * idle_connection_timeout. Their statements fail until they reconnect.
+     */
+    void dropSessions() {
+        for (Connection connection : open) {
+            connection.drop();
+        }
+    }
+
+    /**
+     * @return number of dropped sessions that connected again
+     */
+    synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    private synchronized void reconnected() {
+        reconnects++;
+    }
+
+    synchronized String getPreparedBackupId() {
+        return preparedBackupId;
+    }
+
+    synchronized int getPrepares() {
+        return prepares;
+    }
+
+    synchronized int getInvalidCloses() {
+        return invalidCloses;
+    }
+
+    /**
+     * @param backupId - backup id of a prepared snapshot
+     * @return how the snapshot was closed, null if it was not closed
+     */
+    synchronized Outcome getOutcome(String backupId) {
+        return outcomes.get(backupId);
+    }
+
+    /**
+     * @param backupId - backup id of a snapshot closed as successful
+     * @return the external backup id it was closed with
+     */
+    synchronized String getExternalId(String backupId) {
+        return externalIds.get(backupId);
+    }
+
+    /**
+     * @param authHeader - authorization header the session connected with
+     * @return true if a session connected with the header is open
+     */
+    boolean isConnected(String authHeader) {
+        return sessions.contains(authHeader);
+    }
+
+    private synchronized String prepare() throws SQLException {
+        if (preparedBackupId != null) {
+            throw new SQLException("Snapshot " + preparedBackupId + " is already prepared");
+        }
+        prepares++;
+        preparedBackupId = Long.toString(nextBackupId++);
+        return preparedBackupId;
+    }
+
+    private synchronized void close(boolean successful, String backupId, String externalId) throws SQLException {
+        if (closeFailures > 0) {
+            closeFailures--;
+            throw new SQLException("Injected failure closing snapshot " + backupId);
+        }
+        if (backupId == null || !backupId.equals(preparedBackupId)) {
+            invalidCloses++;
+            throw new SQLException("Snapshot " + backupId + " is not prepared");
+        }
+        if (successful && (externalId == null || externalId.length() > MAX_EXTERNAL_ID_LENGTH)) {
+            throw new SQLException("Invalid external backup id " + externalId);
+        }
+        preparedBackupId = null;
+        outcomes.put(backupId, successful ? Outcome.SUCCESSFUL : Outcome.UNSUCCESSFUL);
+        if (successful) {
+            externalIds.put(backupId, externalId);
+        }
+    }
+
+    /**
+     * A session of the stub. Every user is accepted.
+     */
+    private class Connection implements HanaConnection {
+        private String authHeader = null;
+        private boolean connected = false;
+        private boolean dropped = false;
+
+        @Override
+        public void connect(String dbUser, String dbPass, String encodedAuthStr) {
+            // Held outside the lock, a held session can still be disconnected
+            pass(connectGates);
+            open(encodedAuthStr);
+        }
+
+        private synchronized void open(String encodedAuthStr) {
+            if (connected || unavailableReason != null || revoked.contains(encodedAuthStr)) {
+                return;
+            }
+            connected = true;
+            dropped = false;
+            authHeader = encodedAuthStr;
+            if (authHeader != null) {
+                sessions.add(authHeader);
+            }
+            open.add(this);
+        }
+
+        @Override
+        public boolean connectForMonitoring() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public synchronized boolean revalidate() {
+            if (connected && !dropped) {
+                return true;
+            }
+            String previousAuthHeader = authHeader;
+            disconnect();
+            if (previousAuthHeader == null) {
+                return false;
+            }
+            open(previousAuthHeader);
+            if (connected) {
+                reconnected();
+            }
+            return connected;
+        }
+
+        @Override
+        public synchronized Boolean sapAuthenticate(String authVal) {
+            return connected && authVal != null && authVal.equals(authHeader);
+        }
+
+        @Override
+        public synchronized String getUnavailableReason() {
+            return connected ? null : unavailableReason;
+        }
+
+        @Override
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public String sapPreSnapshot(int waitSecs) throws SQLException {
+            pass(prepareGates);
+            checkConnected();
+            return prepare();
+        }
+
+        @Override
+        public void sapPostSnapshot(Boolean backupSuccess, String backupId, String snapId) throws SQLException {
+            pass(closeGates);
+            checkConnected();
+            close(backupSuccess, backupId, snapId);
+        }
+
+        @Override
+        public HanaStatistics sapStatistics() throws SQLException {
+            throw new SQLException("Not supported by the stub");
+        }
+
+        @Override
+        public HanaMetadata sapMetadata() throws SQLException {
+            throw new SQLException("Not supported by the stub");
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            if (connected && authHeader != null) {
+                sessions.remove(authHeader);
+            }
+            open.remove(this);
+            connected = false;
+            dropped = false;
+            authHeader = null;
+        }
+
+        private synchronized void drop() {
+            dropped = true;
+        }
+
+        private synchronized void checkConnected() throws SQLException {
+            if (!connected) {
+                throw new IllegalStateException("Not connected");
+            }
+            if (dropped) {
+                throw new SQLException("Session was closed by SAP HANA");
+            }
+        }
+    }
+}